@@ -29,6 +29,7 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
     private Map<String, String> varsMap = null;
     private Namespace opts = null;
     private int minInterval = Integer.MAX_VALUE;
+    private Map<String, Set<Integer>> dueOutputs = null;    // key: var, val: slower outputs needing it
 
     private static int depth = 0;
     
@@ -137,8 +138,6 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
         code += insIndent() + "private int currentModeCount;\n";
         if (opts.get("sim"))
             code += insIndent() + "private int time; // msec\n";
-        else
-            code += insIndent() + "private Timer timer;\n";
         if (0 < sigs.size()) {
             for (OutputStream error : errors) {
                 code += insIndent() + "private SlidingWindow win_"
@@ -147,10 +146,64 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
             code += insIndent() + "private List<ErrorSignature> errorSigs;\n";
             code += insIndent() + "private ErrorAnalyzer errorAnalyzer;\n";
         }
+        for (String varName : getInputVarNames()) {
+            code += insIndent() + "private InputBinding " + binding(varName) + ";\n";
+        }
+        for (String varName : getVarNames()) {
+            code += insIndent() + "private double " + field(varName) + " = Double.NaN;\n";
+        }
         code += insIndent() + "private long[] nextSendTimes;\n";
         code += "\n";
     }
 
+    // getVarNames returns the variables evaluated on every tick: inputs,
+    // errors and computed outputs. Each is kept in a double field.
+    private Set<String> getVarNames() {
+        Set<String> varNames = getInputVarNames();
+        for (OutputStream error : errors)
+            varNames.add(error.getVarNames()[0]);
+        for (List<Correct> correctList : corrects.values()) {
+            for (Correct correct : correctList)
+                varNames.add(correct.getVar());
+        }
+        for (OutputStream output : outputs) {
+            for (String outputVarName : output.getVarNames()) {
+                // "mode" is the local variable of the detected mode
+                if (!output.getExp().equals("null") || !outputVarName.equals("mode"))
+                    varNames.add(outputVarName);
+            }
+        }
+        return varNames;
+    }
+
+    // field returns the field name holding the value of varName
+    private String field(String varName) {
+        return "var_" + toIdentifier(varName);
+    }
+
+    // binding returns the field name holding the InputBinding of varName
+    private String binding(String varName) {
+        return "input_" + toIdentifier(varName);
+    }
+
+    private String toIdentifier(String varName) {
+        // variables may have namespaces, e.g., SpeedCheck.va
+        StringBuilder sb = new StringBuilder(varName);
+        for (int i = 0; i < sb.length(); i++) {
+            if (!Character.isJavaIdentifierPart(sb.charAt(i)))
+                sb.setCharAt(i, '$');
+        }
+        return sb.toString();
+    }
+
+    // getInputVarNames returns the input variables without duplicates
+    private Set<String> getInputVarNames() {
+        Set<String> varNames = new LinkedHashSet<>();
+        for (InputStream input : inputs)
+            varNames.addAll(Arrays.asList(input.getVarNames()));
+        return varNames;
+    }
+
     private void generateConstants() {
         for (String constant : constants) {
             code += insIndent() + "private static final double " +  constant + ";\n";
@@ -161,11 +214,23 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
     private void generateConstructor() {
         code += insIndent() + "public " + appName + "(String args[]) {\n";
         code += incInsIndent() + "super(args);\n";
-        code += "\n";
-        if (opts.get("sim"))
+        if (opts.get("sim")) {
+            code += "\n";
             code += insIndent() + "time = 0;\n";
-        else 
-            code += insIndent() + "timer = new Timer();\n";
+        }
+
+        // input bindings are created once and read on every tick
+        code += "\n";
+        for (InputStream input : inputs) {
+            String[] inputVarNames = input.getVarNames();
+            for (int j = 0; j < inputVarNames.length; j++) {
+                code += insIndent() + binding(inputVarNames[j])
+                    + " = new InputBinding(\"" + inputVarNames[j] + "\"";
+                for (Method method : input.getMethods())
+                    code += ", new Method(" + method.toString() + ")";
+                code += ");\n";
+            }
+        }
 
         if (0 < sigs.size()) {
             code += "\n";
@@ -236,7 +301,7 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
 
     private String replaceVar(String exp, Map<String, String> map) {
         // Replace all variables in exp using entires in map
-        // E.g. exp: "a + b" ==> "data.get("a") + data.get("b")"
+        // E.g. exp: "a + b" ==> "var_a + var_b"
         String newExp = "";
         StringTokenizer tokenizer = new StringTokenizer(exp, "()/*+-<>= &|", true);
 
@@ -275,35 +340,28 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
 
     public void generateInputs() {
         code += insIndent() + "// Inputs\n";
-        String info = "LOGGER.fine(\"Inputs: \" + ";        
+        String info = "LOGGER.fine(\"Inputs: \" + ";
         boolean firstVar = true;
         for (int i = 0; i < inputs.size(); i++) {
             InputStream input = inputs.get(i);
             String[] inputVarNames = input.getVarNames();
             for (int j = 0; j < inputVarNames.length; j++) {
-                code += insIndent() + "data.put(\"" + inputVarNames[j]
-                    + "\", getData(\"" + inputVarNames[j] + "\", ";
-                varsMap.put(inputVarNames[j], "data.get(\"" + inputVarNames[j] + "\")");
-                // methods
-                List<Method> methods = input.getMethods();
-                for (int l = 0; l < methods.size(); l++) {
-                    Method method = methods.get(l);
-                    if (l == 0)
-                        code += "new Method(" + method.toString() + ")";
-                    else 
-                        code += ", new Method(" + method.toString() + ")";
-                }
-                code += "));\n";
+                boolean guarded = generateDueGuard(Collections.singleton(inputVarNames[j]));
+                code += insIndent() + field(inputVarNames[j])
+                    + " = getData(" + binding(inputVarNames[j]) + ");\n";
+                if (guarded)
+                    decIndent();
+                varsMap.put(inputVarNames[j], field(inputVarNames[j]));
                 
                 if (firstVar) {
                     firstVar = false;
                 } else {
                     info += " + \", \" + ";
                 }
-                info += "\"" + inputVarNames[j] + "=\" + data.get(\"" + inputVarNames[j] + "\")";
+                info += "\"" + inputVarNames[j] + "=\" + " + field(inputVarNames[j]);
             }
         }
-        code += insIndent() + info + ");\n";
+        generateFineLog(info);
     }
 
     public void generateErrors() {
@@ -311,18 +369,31 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
         String info = "LOGGER.fine(\"Errors: \" + ";                
         boolean firstVar = true;        
         for (OutputStream error : errors) {
-            code += insIndent() + "data.put(\"" + error.getVarNames()[0] + "\", ";
+            boolean guarded = generateDueGuard(Collections.singleton(error.getVarNames()[0]));
+            code += insIndent() + field(error.getVarNames()[0]) + " = ";
             code += replaceVar(replaceMathFuncs(error.getExp()), varsMap);
-            code += ");\n";
-            varsMap.put(error.getVarNames()[0], "data.get(\"" + error.getVarNames()[0] + "\")");
+            code += ";\n";
+            if (guarded)
+                decIndent();
+            varsMap.put(error.getVarNames()[0], field(error.getVarNames()[0]));
 
             if (firstVar) {
                 firstVar = false;
             } else {
                 info += " + \", \" + ";
             }
-            info += "\"" + error.getVarNames()[0] + "=\" + data.get(\"" + error.getVarNames()[0] + "\")";                  }
-        code += insIndent() + info + ");\n";
+            info += "\"" + error.getVarNames()[0] + "=\" + " + field(error.getVarNames()[0]);
+        }
+        generateFineLog(info);
+    }
+
+    // generateFineLog emits a LOGGER.fine call that builds its message only
+    // when the level is enabled; info is the message expression with the
+    // opening LOGGER.fine( only
+    private void generateFineLog(String info) {
+        code += insIndent() + "if (LOGGER.isLoggable(Level.FINE))\n";
+        code += incInsIndent() + info + ");\n";
+        decIndent();
     }
 
     public String replaceMathFuncs(String exp) {
@@ -359,8 +430,7 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
         
         for (OutputStream error : errors) {
             code += insIndent() + "win_" + error.getVarNames()[0]
-                + ".push(data.get(\""
-                + error.getVarNames()[0] + "\"));\n";
+                + ".push(" + field(error.getVarNames()[0]) + ");\n";
         }
         // Currently, only one error variable is supported for error signatures
         code += insIndent() + "mode = errorAnalyzer.analyze(" 
@@ -372,6 +442,11 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
         code += insIndent() + "// Error detection\n";
         code += insIndent() + "int mode = -1;\n";
 
+        String due = getDueCondition(Collections.singleton("mode"));
+        if (due != null) {
+            code += insIndent() + "if (" + due + ") {\n";
+            incIndent();
+        }
         for (int i = 0; i < modes.size(); i++) {
             Mode mode = modes.get(i);
             if (i == 0)
@@ -383,10 +458,22 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
             decIndent();
         }
         code += insIndent() + "}\n";
+        if (due != null)
+            code += decInsIndent() + "}\n";
     }
 
     private void generateEstimation() {
         code += insIndent() + "// Correct data estimation\n";
+        Set<String> correctVarNames = new HashSet<>();
+        for (List<Correct> correctList : corrects.values()) {
+            for (Correct correct : correctList)
+                correctVarNames.add(correct.getVar());
+        }
+        String due = getDueCondition(correctVarNames);
+        if (due != null) {
+            code += insIndent() + "if (" + due + ") {\n";
+            incIndent();
+        }
         code += insIndent() + "switch (mode) {\n";
 
         for (Integer modeId : corrects.keySet()) {
@@ -396,8 +483,8 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
             String info = "LOGGER.fine(\"Estimated: \" + ";
             boolean firstVar = true;
             for (Correct correct : correctList) {
-                code += insIndent() + "data.put(\"" + correct.getVar() + "\", "
-                    + replaceVar(replaceMathFuncs(correct.getExp()), varsMap) + ");\n";
+                code += insIndent() + field(correct.getVar()) + " = "
+                    + replaceVar(replaceMathFuncs(correct.getExp()), varsMap) + ";\n";
 
                 /* Shigeru: Comment out for now - the following code by Liyu 
                    does not support multiple estimates associated with a single mode
@@ -419,9 +506,9 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
                 } else {
                     info += " + \", \" + ";
                 }
-                info += "\"" + correct.getVar() + "=\" + data.get(\"" + correct.getVar() + "\")";                
+                info += "\"" + correct.getVar() + "=\" + " + field(correct.getVar());
             }
-            code += insIndent() + info + ");\n";            
+            generateFineLog(info);
             code += insIndent() + "break;\n";
             decIndent();
         }
@@ -430,6 +517,8 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
         // code += insIndent() + "setModeCount(-1);\n";
         code += insIndent() + "break;\n";
         code += decInsIndent() + "}\n";
+        if (due != null)
+            code += decInsIndent() + "}\n";
     }
 
     private void generateOutputs() {
@@ -438,8 +527,15 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
             for (String outputVarName : output.getVarNames()) {
                 // special case for "mode" keyword
                 if (!output.getExp().equals("null")) {
-                    code += insIndent() + "data.put(\"" + outputVarName + "\", "
-                        + replaceVar(replaceMathFuncs(output.getExp()), varsMap) + ");\n";
+                    boolean guarded = (minInterval != output.getInterval());
+                    if (guarded)
+                        code += insIndent() + "if (" + due(output) + ")\n" + incInsIndent();
+                    else
+                        code += insIndent();
+                    code += field(outputVarName) + " = "
+                        + replaceVar(replaceMathFuncs(output.getExp()), varsMap) + ";\n";
+                    if (guarded)
+                        decIndent();
                 }
             }
         }
@@ -447,13 +543,13 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
 
     private void generateSendData() {
         code += insIndent() + "// Data transfer\n";
-        code += insIndent() + "Date now = getTime();\n";
+        if (!isMultiRate())
+            code += insIndent() + "Date now = getTime();\n";
         code += insIndent() + "try {\n";
         incIndent();
         for (OutputStream output : outputs) {
             if (minInterval != output.getInterval()) {
-                code += insIndent() + "if (nextSendTimes["
-                    + output.getSockIndex() + "] <= now.getTime()) {\n";
+                code += insIndent() + "if (" + due(output) + ") {\n";
                 incIndent();
             }
             code += insIndent() + "sendData(" + output.getSockIndex() + ", ";
@@ -464,8 +560,8 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
                     code += "mode"; // special variable
                     info += "\"mode=\" + mode + \" \"";
                 } else {
-                    code += "data.get(\"" + outputVarNames[i] + "\")";
-                    info += "\"" + outputVarNames[i] + "=\" + data.get(\"" + outputVarNames[i] + "\") + \" \"";
+                    code += field(outputVarNames[i]);
+                    info += "\"" + outputVarNames[i] + "=\" + " + field(outputVarNames[i]) + " + \" \"";
                 }
                 if (i == outputVarNames.length - 1)
                     code += ");\n";
@@ -486,18 +582,168 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
         code += decInsIndent() + "}\n";
     }
 
+    // scheduleOutputs finds which variables each output depends on, so that
+    // the variables only the outputs slower than the loop interval depend on
+    // are evaluated only when one of those outputs is due. Variables needed
+    // by the outputs at the loop interval, or by the sliding windows of
+    // error signatures, which must be pushed on every tick, are evaluated
+    // on every tick, as well as those no output depends on.
+    private void scheduleOutputs(boolean requireSignatures) {
+        Map<String, Set<String>> deps = getDependencies(requireSignatures);
+        Set<String> always = new HashSet<>();
+        if (requireSignatures) {
+            for (OutputStream error : errors)
+                always.addAll(getClosure(Collections.singleton(error.getVarNames()[0]), deps));
+            always.add("mode");
+        }
+
+        dueOutputs = new HashMap<>();
+        for (OutputStream output : outputs) {
+            Set<String> varNames;
+            if (output.getExp().equals("null"))
+                varNames = new HashSet<>(Arrays.asList(output.getVarNames()));
+            else
+                varNames = getVarRefs(output.getExp());
+            varNames = getClosure(varNames, deps);
+
+            if (minInterval == output.getInterval()) {
+                always.addAll(varNames);
+                continue;
+            }
+            for (String varName : varNames) {
+                if (!dueOutputs.containsKey(varName))
+                    dueOutputs.put(varName, new TreeSet<Integer>());
+                dueOutputs.get(varName).add(output.getSockIndex());
+            }
+        }
+        dueOutputs.keySet().removeAll(always);
+    }
+
+    // getDependencies returns the variables each error, corrected variable
+    // and the mode are computed from
+    private Map<String, Set<String>> getDependencies(boolean requireSignatures) {
+        Map<String, Set<String>> deps = new HashMap<>();
+        for (OutputStream error : errors)
+            addDependencies(deps, error.getVarNames()[0], getVarRefs(error.getExp()));
+        for (List<Correct> correctList : corrects.values()) {
+            for (Correct correct : correctList) {
+                addDependencies(deps, correct.getVar(), getVarRefs(correct.getExp()));
+                addDependencies(deps, correct.getVar(), Collections.singleton("mode"));
+            }
+        }
+        if (requireSignatures) {
+            for (OutputStream error : errors)
+                addDependencies(deps, "mode", Collections.singleton(error.getVarNames()[0]));
+        }
+        else {
+            for (Mode mode : modes)
+                addDependencies(deps, "mode", getVarRefs(mode.getCondition()));
+        }
+        return deps;
+    }
+
+    private void addDependencies(Map<String, Set<String>> deps, String varName, Set<String> varNames) {
+        if (!deps.containsKey(varName))
+            deps.put(varName, new HashSet<String>());
+        deps.get(varName).addAll(varNames);
+    }
+
+    // getClosure returns varNames and all the variables they depend on
+    private Set<String> getClosure(Set<String> varNames, Map<String, Set<String>> deps) {
+        Set<String> closure = new HashSet<>();
+        Deque<String> stack = new ArrayDeque<>(varNames);
+        while (!stack.isEmpty()) {
+            String varName = stack.pop();
+            if (closure.add(varName) && deps.containsKey(varName))
+                stack.addAll(deps.get(varName));
+        }
+        return closure;
+    }
+
+    // getVarRefs returns the tokens of exp which may be variables, tokenized
+    // as replaceVar does
+    private Set<String> getVarRefs(String exp) {
+        Set<String> varNames = new HashSet<>();
+        StringTokenizer tokenizer = new StringTokenizer(exp, "()/*+-<>= &|,");
+        while (tokenizer.hasMoreTokens()) {
+            String var = tokenizer.nextToken();
+            int powerOpIndex = var.indexOf("^");
+            if (0 < powerOpIndex)
+                var = var.substring(0, powerOpIndex);
+            varNames.add(var);
+        }
+        return varNames;
+    }
+
+    // isMultiRate returns true if some outputs are slower than the loop
+    private boolean isMultiRate() {
+        for (OutputStream output : outputs) {
+            if (minInterval != output.getInterval())
+                return true;
+        }
+        return false;
+    }
+
+    // due returns the local variable which is true when output is due
+    private String due(OutputStream output) {
+        return "due" + output.getSockIndex();
+    }
+
+    // getDueCondition returns the condition on which varNames are needed,
+    // or null if they are needed on every tick
+    private String getDueCondition(Set<String> varNames) {
+        Set<Integer> sockIndices = new TreeSet<>();
+        for (String varName : varNames) {
+            Set<Integer> varSockIndices = dueOutputs.get(varName);
+            if (varSockIndices == null)
+                return null;
+            sockIndices.addAll(varSockIndices);
+        }
+        if (sockIndices.isEmpty())
+            return null;
+
+        String condition = "";
+        for (int sockIndex : sockIndices) {
+            if (!condition.isEmpty())
+                condition += " || ";
+            condition += "due" + sockIndex;
+        }
+        return condition;
+    }
+
+    // generateDueGuard makes the next statement, evaluating varNames, run
+    // only when they are needed, indenting it; returns true if it did so
+    private boolean generateDueGuard(Set<String> varNames) {
+        String due = getDueCondition(varNames);
+        if (due == null)
+            return false;
+        code += insIndent() + "if (" + due + ")\n";
+        incIndent();
+        return true;
+    }
+
+    private void generateDueOutputs() {
+        code += insIndent() + "// Outputs due on this tick\n";
+        code += insIndent() + "Date now = getTime();\n";
+        for (OutputStream output : outputs) {
+            if (minInterval != output.getInterval()) {
+                code += insIndent() + "boolean " + due(output) + " = nextSendTimes["
+                    + output.getSockIndex() + "] <= now.getTime();\n";
+            }
+        }
+    }
+
     private void generateLoop() {
         boolean requireOutputsComputation = false;
         for (OutputStream output : outputs) {
             // Get the minimum interval
             if (output.getInterval() < minInterval)
                 minInterval = output.getInterval();
-            if (!output.getExp().equals("null")) {
+            if (!output.getExp().equals("null"))
                 requireOutputsComputation = true;
-                break;
-            }            
         }
         boolean requireSignatures = 0 < errors.size() && 0 < sigs.size();
+        scheduleOutputs(requireSignatures);
         boolean requireModes = 0 < modes.size();
         boolean requireOutputs = 0 < outputs.size();
         
@@ -527,15 +773,19 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
         }
 
         code += insIndent() + "final int interval = " + minInterval + ";\n";
-        code += insIndent() + "Map<String, Double> data = new HashMap<>();\n";
         if (opts.get("sim"))
             code += insIndent() + "while (!isEndTime()) {\n";
         else {
-            code += insIndent() + "timer.scheduleAtFixedRate(new TimerTask() {\n";
+            // ticks run on the scheduler shared by the programs in the JVM
+            code += insIndent() + "scheduleAtFixedRate(new Runnable() {\n";
             code += incInsIndent() + "public void run() {\n";
         }
 
         incIndent();
+        if (isMultiRate()) {
+            generateDueOutputs();
+            code += "\n";
+        }
         generateInputs();
         code += "\n";        
 
@@ -546,7 +796,7 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
                 generateErrors();
                 code += "\n";
                 generateSignaturesErrorDetection();
-                code += insIndent() + "LOGGER.fine(\"Detected: mode=\" + mode);\n";
+                generateFineLog("LOGGER.fine(\"Detected: mode=\" + mode");
                 code += "\n";
             }
             else if (requireModes) {
@@ -557,7 +807,7 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
                     code += "\n";
                 }
                 generateModesErrorDetection();
-                code += insIndent() + "LOGGER.fine(\"Detected: mode=\" + mode);\n";                
+                generateFineLog("LOGGER.fine(\"Detected: mode=\" + mode");                
                 code += "\n";                
             }
             LOGGER.finest("corrects.size() = " + corrects.size());
@@ -594,7 +844,7 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
         }
         else {
             code += decInsIndent() + "}\n";
-            code += decInsIndent() + "}, 0, interval);\n";
+            code += decInsIndent() + "}, interval);\n";
         }
         
         code += decInsIndent() + "}\n";
@@ -624,14 +874,17 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
         code += insIndent() + "app.startServer();\n";
 
         if (opts.get("sim")) {
+            // replayed inputs are loaded by startServer, no need to wait
             code += "\n";
-            code += insIndent() + "BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));\n";
+            code += insIndent() + "if (!app.isReplay()) {\n";
+            code += incInsIndent() + "BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));\n";
             code += insIndent() + "System.out.println(\"Hit ENTER key after running input producer(s).\");\n";
             code += insIndent() + "try {\n";
             code += incInsIndent() + "reader.readLine();\n";
             code += decInsIndent() + "} catch (Exception ex) {\n";
             code += incInsIndent() + "ex.printStackTrace();\n";
             code += decInsIndent() + "}\n";
+            code += decInsIndent() + "}\n";
             code += "\n";
         }
         
@@ -950,6 +1203,8 @@ public class PilotsCodeGenerator implements PilotsParserVisitor {
             id = Method.EUCLIDEAN;
         } else if (vals[0].equalsIgnoreCase("interpolate")) {
             id = Method.INTERPOLATE;
+        } else if (vals[0].equalsIgnoreCase("geodesic")) {
+            id = Method.GEODESIC;
         } else if (vals[0].equalsIgnoreCase("model")){
             id = Method.MODEL;
 	    models.add( vals[1].split(",")[0] );
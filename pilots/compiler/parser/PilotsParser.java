@@ -6,6 +6,16 @@ import java.io.*;
 public class PilotsParser/*@bgen(jjtree)*/implements PilotsParserTreeConstants, PilotsParserConstants {/*@bgen(jjtree)*/
   protected JJTPilotsParserState jjtree = new JJTPilotsParserState();
 
+  // checkMethod returns the name of a method which is not reserved as a
+  // keyword, e.g., geodesic, and rejects unknown methods as a parse error
+  private String checkMethod(Token t) throws ParseException {
+    if (!t.image.equals("geodesic"))
+      throw new ParseException("Encountered \"" + t.image + "\" at line " + t.beginLine
+                               + ", column " + t.beginColumn + ".\n"
+                               + "Was expecting one of: closest, euclidean, geodesic, interpolate, model");
+    return t.image;
+  }
+
 /**************************************/
 /********** START OF GRAMMAR **********/
 /**************************************/
@@ -740,6 +750,11 @@ id = t.image;
 id = t.image;
         break;
         }
+      case VAR:{
+        t = jj_consume_token(VAR);
+id = checkMethod(t);
+        break;
+        }
       default:
         jj_la1[30] = jj_gen;
         jj_consume_token(-1);
@@ -1397,7 +1412,7 @@ if (jjtc000) {
 	   jj_la1_0 = new int[] {0x0,0x0,0x0,0x0,0x1000,0x0,0x0,0x0,0x0,0x4000,0x0,0x0,0x8000,0x0,0x0,0x10000,0x0,0x0,0x20000,0x0,0x0,0x0,0x0,0x2000000,0x0,0x2000000,0x0,0x4000000,0x0,0x0,0x1e00000,0x0,0xf0000000,0x0,0x0,0x0,0x0,0x0,0x0,};
 	}
 	private static void jj_la1_init_1() {
-	   jj_la1_1 = new int[] {0x1000000,0x4000000,0x1000000,0x4000000,0x0,0x1000000,0x4000000,0x1000000,0x4000000,0x0,0x1000000,0x4000000,0x0,0x1000000,0x4000000,0x0,0x1000000,0x4000000,0x0,0x4000000,0x1000000,0x20000,0x2000000,0x0,0x2000000,0x0,0x100000,0x0,0x20000,0x80000,0x0,0x80000,0x7,0x80000,0xe1527ff8,0xe0007ff8,0xe0007ff8,0x500000,0x1500000,};
+	   jj_la1_1 = new int[] {0x1000000,0x4000000,0x1000000,0x4000000,0x0,0x1000000,0x4000000,0x1000000,0x4000000,0x0,0x1000000,0x4000000,0x0,0x1000000,0x4000000,0x0,0x1000000,0x4000000,0x0,0x4000000,0x1000000,0x20000,0x2000000,0x0,0x2000000,0x0,0x100000,0x0,0x20000,0x80000,0x1000000,0x80000,0x7,0x80000,0xe1527ff8,0xe0007ff8,0xe0007ff8,0x500000,0x1500000,};
 	}
 	private static void jj_la1_init_2() {
 	   jj_la1_2 = new int[] {0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0xff,0xff,0xff,0x0,0x0,};
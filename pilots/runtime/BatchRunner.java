@@ -0,0 +1,221 @@
+package pilots.runtime;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+
+// BatchRunner runs a PILOTS program compiled with --sim over many recorded
+// flights or time ranges concurrently in one JVM. Each run has its own
+// RuntimeContext, loads its inputs with --replay, and the lines written to
+// its outputs are collected per run instead of (or as well as) being sent
+// to the output connections.
+//
+// Usage: BatchRunner <program class> <runs file> [parallelism] [output dir]
+// Each line of the runs file is a run name followed by the program
+// arguments, which may be double-quoted, e.g.,
+//   af447 --currloctime pilots.runtime.SimTimeService --timerange "2009-06-01 020930-0500~2009-06-01 021130-0500" --replay speed_data.txt
+// The outputs of a run are written to <output dir>/<run name>.<connId>.txt.
+public class BatchRunner {
+    private static Logger LOGGER = Logger.getLogger(BatchRunner.class.getName());
+
+    // Run is one execution of the program and its results
+    public static class Run implements OutputListener {
+        private String name;
+        private String[] args;
+        private Map<Integer, List<String>> outputs = new TreeMap<>();
+        private Throwable error = null;
+        private long elapsedTime = 0;    // msec
+
+        public Run(String name, String... args) {
+            this.name = name;
+            this.args = args;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String[] getArgs() {
+            return args;
+        }
+
+        // getOutputs returns the lines written to each output, by connId
+        public synchronized Map<Integer, List<String>> getOutputs() {
+            return outputs;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        public synchronized void output(int connId, String line) {
+            outputs.computeIfAbsent(connId, k -> new ArrayList<>()).add(line);
+        }
+
+        public String toString() {
+            String str = name + ": " + elapsedTime + " msec";
+            for (Map.Entry<Integer, List<String>> entry : outputs.entrySet())
+                str += ", output " + entry.getKey() + " " + entry.getValue().size() + " lines";
+            if (error != null)
+                str += ", failed: " + error;
+            return str;
+        }
+    }
+
+    private Constructor<? extends PilotsRuntime> constructor;
+    private ForkJoinPool pool;
+
+    public BatchRunner(Class<? extends PilotsRuntime> programClass, int parallelism)
+        throws NoSuchMethodException {
+        this.constructor = programClass.getConstructor(String[].class);
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    // runAll executes runs on the pool and returns when all of them are done
+    public List<Run> runAll(List<Run> runs) {
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (final Run run : runs) {
+            tasks.add(new RecursiveAction() {
+                    protected void compute() {
+                        execute(run);
+                    }
+                });
+        }
+        pool.submit(new RecursiveAction() {
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            }).join();
+        return runs;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private void execute(Run run) {
+        long startTime = System.currentTimeMillis();
+        RuntimeContext prev = RuntimeContext.setCurrent(new RuntimeContext(run.getName()));
+        try {
+            PilotsRuntime program = constructor.newInstance((Object)run.getArgs());
+            if (!program.isReplay())
+                throw new IllegalArgumentException("--replay is required for batch runs");
+            program.setOutputListener(run);
+            program.startServer();
+            program.produceOutputs();
+            program.closeOutputs();
+        } catch (InvocationTargetException ex) {
+            run.error = ex.getCause();
+        } catch (Exception ex) {
+            run.error = ex;
+        } finally {
+            RuntimeContext.setCurrent(prev);
+            run.elapsedTime = System.currentTimeMillis() - startTime;
+        }
+        if (run.error != null)
+            LOGGER.severe("Run " + run.getName() + " failed: " + run.error);
+        else
+            LOGGER.info("Run " + run.getName() + " finished in " + run.elapsedTime + " msec");
+    }
+
+    // parseArgs splits a line into whitespace-separated arguments, where
+    // double-quoted arguments may contain whitespaces
+    static List<String> parseArgs(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = null;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                if (arg == null)
+                    arg = new StringBuilder();
+            }
+            else if (!quoted && Character.isWhitespace(c)) {
+                if (arg != null)
+                    args.add(arg.toString());
+                arg = null;
+            }
+            else {
+                if (arg == null)
+                    arg = new StringBuilder();
+                arg.append(c);
+            }
+        }
+        if (arg != null)
+            args.add(arg.toString());
+        return args;
+    }
+
+    private static List<Run> readRuns(String filename) throws IOException {
+        List<Run> runs = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> args = parseArgs(line);
+                if (args.isEmpty() || args.get(0).startsWith("#"))
+                    continue;
+                String name = args.remove(0);
+                runs.add(new Run(name, args.toArray(new String[0])));
+            }
+        }
+        return runs;
+    }
+
+    private static void writeOutputs(Run run, File dir) throws IOException {
+        for (Map.Entry<Integer, List<String>> entry : run.getOutputs().entrySet()) {
+            File file = new File(dir, run.getName() + "." + entry.getKey() + ".txt");
+            try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+                for (String line : entry.getValue())
+                    writer.println(line);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: BatchRunner <program class> <runs file> [parallelism] [output dir]");
+            System.exit(1);
+        }
+
+        try {
+            Class<? extends PilotsRuntime> programClass =
+                Class.forName(args[0]).asSubclass(PilotsRuntime.class);
+            List<Run> runs = readRuns(args[1]);
+            int parallelism = (3 <= args.length) ?
+                Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            File dir = (4 <= args.length) ? new File(args[3]) : null;
+            if (dir != null)
+                dir.mkdirs();
+
+            BatchRunner runner = new BatchRunner(programClass, parallelism);
+            long startTime = System.currentTimeMillis();
+            runner.runAll(runs);
+            runner.shutdown();
+
+            int numFailed = 0;
+            for (Run run : runs) {
+                System.out.println(run);
+                if (run.getError() != null)
+                    numFailed++;
+                else if (dir != null)
+                    writeOutputs(run, dir);
+            }
+            System.out.println(runs.size() + " runs, " + numFailed + " failed, "
+                               + (System.currentTimeMillis() - startTime) + " msec");
+            System.exit(numFailed == 0 ? 0 : 1);
+        } catch (Exception ex) {
+            LOGGER.severe(ex.toString());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package pilots.runtime;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+// BinaryProtocol is the framed binary form of the PILOTS data protocol. A
+// sender opts in by sending the text line "!binary" first, and the rest of
+// the stream is a sequence of frames, big-endian as DataOutputStream writes:
+//   'L' u16 length, UTF-8 bytes      a protocol line, e.g., "#var1,var2"
+//   'D' i64 time (msec since epoch), u8 dimension, f64 x dimension location,
+//       u16 # of values, f64 x # of values
+//                                    a sample
+//   'E'                              end of stream
+// Samples cross the wire as primitives, without being formatted into and
+// parsed back from text. Receivers not opted in keep reading text.
+public class BinaryProtocol {
+    public static final String PREAMBLE = "!binary";
+
+    public static final byte LINE = 'L';
+    public static final byte DATA = 'D';
+    public static final byte END = 'E';
+
+    private static final int MAX_LINE_LENGTH = 0xffff;
+
+    public static void writePreamble(DataOutputStream out) throws IOException {
+        out.write((PREAMBLE + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public static void writeLine(DataOutputStream out, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (MAX_LINE_LENGTH < bytes.length)
+            throw new IOException("Line too long: " + bytes.length + " bytes");
+        out.writeByte(LINE);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    // writeData writes a sample, where location may be null
+    public static void writeData(DataOutputStream out, long time, double[] location, double[] values)
+        throws IOException {
+        out.writeByte(DATA);
+        out.writeLong(time);
+        int dimension = (location != null) ? location.length : 0;
+        out.writeByte(dimension);
+        for (int c = 0; c < dimension; c++)
+            out.writeDouble(location[c]);
+        out.writeShort(values.length);
+        for (double value : values)
+            out.writeDouble(value);
+    }
+
+    public static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeByte(END);
+    }
+
+    // frameLength returns the length of the frame at the position of buf,
+    // or -1 if the frame is not complete yet. The position is not changed.
+    static int frameLength(ByteBuffer buf) throws IOException {
+        int pos = buf.position();
+        int remaining = buf.remaining();
+        if (remaining < 1)
+            return -1;
+
+        int length;
+        byte type = buf.get(pos);
+        switch (type) {
+        case LINE:
+            if (remaining < 3)
+                return -1;
+            length = 3 + (buf.getShort(pos + 1) & 0xffff);
+            break;
+        case DATA:
+            if (remaining < 10)
+                return -1;
+            int dimension = buf.get(pos + 9) & 0xff;
+            if (Dimension.MAX_SPATIAL_DIMENSION < dimension)
+                throw new IOException("Invalid dimension: " + dimension);
+            int valuesPos = 10 + 8 * dimension;
+            if (remaining < valuesPos + 2)
+                return -1;
+            length = valuesPos + 2 + 8 * (buf.getShort(pos + valuesPos) & 0xffff);
+            break;
+        case END:
+            length = 1;
+            break;
+        default:
+            throw new IOException("Invalid frame type: " + type);
+        }
+
+        return (length <= remaining) ? length : -1;
+    }
+}
@@ -0,0 +1,412 @@
+package pilots.runtime;
+
+import java.util.Arrays;
+
+
+// ColumnStore keeps the samples of a DataStore in primitive columns: one
+// double[] per variable, the start/end times (msec) in a TimeIndex and
+// double[] for each of the x/y/z coordinates. The columns form a ring laid
+// out by a RingBuffer; row 0 is the oldest sample and row size() - 1 the
+// newest one. The rows closest in time are found by the TimeIndex.
+//
+// Likewise, the rows closest to a location are found with a SpatialGrid on
+// the coordinates searched for. A grid is created on demand by
+// createSpatialIndex, then kept up to date as rows are added and removed,
+// and rebuilt from time to time to fit its cells to the locations. For
+// great-circle distances on latitude (x) and longitude (y) in degrees, the
+// grid is on the points of the unit sphere, where the straight line
+// distance between two points is never longer than the great-circle one.
+public class ColumnStore {
+    private int numVars;
+    private RingBuffer ring;       // positions of the rows in the columns
+    private double[][] values;     // values[var][pos]
+    private TimeIndex times;
+    private double[][] locStarts;  // locStarts[coord][pos]
+    private double[][] locEnds;    // locEnds[coord][pos]
+    private boolean[] located;
+
+    private int numUnlocated;      // # of rows without locations
+
+    // the grid on great-circle distances, next to those on coordinate masks
+    public static final int GEODESIC = 1 << Dimension.MAX_SPATIAL_DIMENSION;
+
+    private static final int MIN_REBUILD_ROWS = 64;
+    private SpatialGrid[] grids;   // grids[coord mask or GEODESIC], null unless created
+    private int[] numRowsToRebuild;  // # of rows to be added until each grid is rebuilt
+
+    public ColumnStore(int numVars, int capacity) {
+        this.numVars = numVars;
+        this.ring = new RingBuffer(capacity);
+        this.values = new double[numVars][capacity];
+        this.times = new TimeIndex(ring);
+        this.locStarts = new double[Dimension.MAX_SPATIAL_DIMENSION][];
+        this.locEnds = new double[Dimension.MAX_SPATIAL_DIMENSION][];
+        this.located = new boolean[capacity];
+        this.numUnlocated = 0;
+        this.grids = new SpatialGrid[GEODESIC + 1];
+        this.numRowsToRebuild = new int[grids.length];
+    }
+
+    public int size() {
+        return ring.size();
+    }
+
+    public int getCapacity() {
+        return ring.getCapacity();
+    }
+
+    public int getNumVars() {
+        return numVars;
+    }
+
+    public boolean isFull() {
+        return ring.isFull();
+    }
+
+    // add appends the line last parsed by parser to the tail. When the
+    // store is full the capacity is doubled; callers wanting a bounded store
+    // should call removeFirst() first. Missing values are stored as NaN.
+    public void add(DataParser parser) {
+        int pos = allocRow();
+        times.add(pos, parser);
+
+        if (parser.hasLocations()) {
+            for (int c = 0; c < Dimension.MAX_SPATIAL_DIMENSION; c++) {
+                locationColumn(locStarts, c)[pos] = parser.getLocation(0, c);
+                locationColumn(locEnds, c)[pos] = parser.getLocation(1, c);
+            }
+            located[pos] = true;
+        }
+        else {
+            located[pos] = false;
+        }
+
+        int numValues = parser.getNumValues();
+        for (int v = 0; v < numVars; v++)
+            values[v][pos] = (v < numValues) ? parser.getValue(v) : Double.NaN;
+
+        commitRow(pos);
+        indexRow(pos);
+    }
+
+    public void removeFirst() {
+        if (ring.size() == 0)
+            return;
+
+        times.removeFirst();
+        int head = ring.position(0);
+        if (!located[head])
+            numUnlocated--;
+        for (int mask = 1; mask < grids.length; mask++) {
+            if (grids[mask] != null && located[head])
+                removeFromGrid(mask, ring.getNumRemoved(), head);
+        }
+
+        ring.removeFirst();
+    }
+
+    public void clear() {
+        ring.clear();
+        times.clear();
+        numUnlocated = 0;
+        for (int mask = 1; mask < grids.length; mask++) {
+            if (grids[mask] != null)
+                buildGrid(mask);
+        }
+    }
+
+    public double getValue(int row, int var) {
+        return values[var][ring.position(row)];
+    }
+
+    public boolean hasTimes(int row) {
+        return times.hasTimes(row);
+    }
+
+    public boolean hasLocations(int row) {
+        return located[ring.position(row)];
+    }
+
+    public long getStart(int row) {
+        return times.getStart(row);
+    }
+
+    public long getEnd(int row) {
+        return times.getEnd(row);
+    }
+
+    public long calcTimeDiff(int row, long base) {
+        return times.calcTimeDiff(row, base);
+    }
+
+    // isOrdered, closest and nearest are those of TimeIndex
+
+    public boolean isOrdered() {
+        return times.isOrdered();
+    }
+
+    public int[] closest(long t) {
+        return times.closest(t, null);
+    }
+
+    public int[] closest(long t, TimeIndex.Cursor cursor) {
+        return times.closest(t, cursor);
+    }
+
+    public int[] nearest(long t, int k, TimeIndex.Cursor cursor) {
+        return times.nearest(t, k, cursor);
+    }
+
+    // isLocated returns true if every row has locations
+    public boolean isLocated() {
+        return numUnlocated == 0;
+    }
+
+    // coordMask returns the mask of the bits of coords, or -1 if coords
+    // cannot be indexed, e.g., they include t or the same coordinate twice
+    public static int coordMask(int[] coords) {
+        int mask = 0;
+        for (int coord : coords) {
+            if (coord < 0 || Dimension.MAX_SPATIAL_DIMENSION <= coord || (mask & (1 << coord)) != 0)
+                return -1;
+            mask |= 1 << coord;
+        }
+        return (mask != 0) ? mask : -1;
+    }
+
+    public boolean hasSpatialIndex(int mask) {
+        return grids[mask] != null;
+    }
+
+    // createSpatialIndex creates the grid on the coordinates of mask
+    public void createSpatialIndex(int mask) {
+        if (grids[mask] == null)
+            buildGrid(mask);
+    }
+
+    // closestLocations returns the rows whose locations are the closest to
+    // location on coords, in ascending order. The semantics are the same as
+    // the linear scan in DataStore.applyEuclidean: the distance of a row is
+    // the Euclidean distance of calcLocationDiff on each of coords, which is
+    // calcLocationDiff itself for one coordinate, and all rows at the
+    // minimum distance are returned. Must be called only when
+    // hasSpatialIndex(coordMask(coords)) is true.
+    public int[] closestLocations(final int[] coords, final double[] location) {
+        int mask = coordMask(coords);
+        double[] gridLocation = new double[Dimension.MAX_SPATIAL_DIMENSION];
+        int d = 0;
+        for (int c = 0; c < Dimension.MAX_SPATIAL_DIMENSION; c++) {
+            if ((mask & (1 << c)) != 0)
+                gridLocation[d++] = location[c];
+        }
+
+        long[] found = grids[mask].nearest(gridLocation, new SpatialGrid.RowDistance() {
+                public double of(long absRow) {
+                    int row = (int)(absRow - ring.getNumRemoved());
+                    if (coords.length == 1)
+                        return calcLocationDiff(row, coords[0], location[coords[0]]);
+
+                    double diff, sum = 0.0;
+                    for (int j = 0; j < coords.length; j++) {
+                        diff = calcLocationDiff(row, coords[j], location[coords[j]]);
+                        sum += (diff * diff);
+                    }
+                    return Math.sqrt(sum);
+                }
+            });
+
+        int[] rows = new int[found.length];
+        for (int i = 0; i < found.length; i++)
+            rows[i] = (int)(found[i] - ring.getNumRemoved());
+        return rows;
+    }
+
+    // closestGeodesic returns the rows whose locations are the closest to
+    // (lat, lon) by calcGeodesicDist on x and y, in ascending order, as the
+    // linear scan in DataStore.applyGeodesic. Must be called only when
+    // hasSpatialIndex(GEODESIC) is true.
+    public int[] closestGeodesic(final double lat, final double lon) {
+        double[] point = new double[Dimension.MAX_SPATIAL_DIMENSION];
+        toUnitVector(lat, lon, point);
+
+        // the distance is the central angle, i.e., on the unit sphere
+        long[] found = grids[GEODESIC].nearest(point, new SpatialGrid.RowDistance() {
+                public double of(long absRow) {
+                    return calcGeodesicDist((int)(absRow - ring.getNumRemoved()), Dimension.X, Dimension.Y, lat, lon);
+                }
+            });
+
+        int[] rows = new int[found.length];
+        for (int i = 0; i < found.length; i++)
+            rows[i] = (int)(found[i] - ring.getNumRemoved());
+        return rows;
+    }
+
+    // calcGeodesicDist returns the central angle in radians between (lat,
+    // lon) and the closer of the start and end locations of row, where
+    // latCoord and lonCoord hold their latitudes and longitudes in degrees
+    public double calcGeodesicDist(int row, int latCoord, int lonCoord, double lat, double lon) {
+        int pos = ring.position(row);
+        if (!located[pos] || locStarts[latCoord] == null || locStarts[lonCoord] == null)
+            return Double.NaN;
+        return Math.min(calcCentralAngle(locStarts[latCoord][pos], locStarts[lonCoord][pos], lat, lon),
+                        calcCentralAngle(locEnds[latCoord][pos], locEnds[lonCoord][pos], lat, lon));
+    }
+
+    // calcCentralAngle returns the central angle between two points by the
+    // haversine formula, which is accurate for small distances as well
+    private static double calcCentralAngle(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinDPhi = Math.sin((phi2 - phi1) / 2);
+        double sinDLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double h = sinDPhi * sinDPhi + Math.cos(phi1) * Math.cos(phi2) * sinDLambda * sinDLambda;
+        return 2 * Math.asin(Math.min(1.0, Math.sqrt(h)));
+    }
+
+    private static void toUnitVector(double lat, double lon, double[] point) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        point[0] = Math.cos(phi) * Math.cos(lambda);
+        point[1] = Math.cos(phi) * Math.sin(lambda);
+        point[2] = Math.sin(phi);
+    }
+
+    private static int gridDimension(int mask) {
+        return (mask == GEODESIC) ? Dimension.MAX_SPATIAL_DIMENSION : Integer.bitCount(mask);
+    }
+
+    // buildGrid (re)creates the grid of mask from the rows, choosing the
+    // cell size from the extent of their locations
+    private void buildGrid(int mask) {
+        int dimension = gridDimension(mask);
+        double[] min = new double[dimension];
+        double[] max = new double[dimension];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        double[] starts = new double[dimension];
+        double[] ends = new double[dimension];
+        int numLocated = 0;
+        for (int row = 0; row < ring.size(); row++) {
+            int pos = ring.position(row);
+            if (!located[pos] || !getGridLocation(mask, pos, starts, ends))
+                continue;
+            for (int c = 0; c < dimension; c++) {
+                min[c] = Math.min(min[c], Math.min(starts[c], ends[c]));
+                max[c] = Math.max(max[c], Math.max(starts[c], ends[c]));
+            }
+            numLocated++;
+        }
+
+        SpatialGrid grid = new SpatialGrid(dimension, SpatialGrid.getCellSize(min, max, numLocated));
+        for (int row = 0; row < ring.size(); row++) {
+            int pos = ring.position(row);
+            if (located[pos] && getGridLocation(mask, pos, starts, ends))
+                grid.add(ring.getNumRemoved() + row, starts, ends);
+        }
+        grids[mask] = grid;
+        numRowsToRebuild[mask] = Math.max(numLocated, MIN_REBUILD_ROWS);
+    }
+
+    // indexRow adds the row at pos, which has just been added, to the grids
+    private void indexRow(int pos) {
+        if (!located[pos])
+            return;
+        for (int mask = 1; mask < grids.length; mask++) {
+            if (grids[mask] == null)
+                continue;
+            if (--numRowsToRebuild[mask] <= 0) {
+                buildGrid(mask);
+                continue;
+            }
+            int dimension = gridDimension(mask);
+            double[] starts = new double[dimension];
+            double[] ends = new double[dimension];
+            if (getGridLocation(mask, pos, starts, ends))
+                grids[mask].add(ring.getNumRemoved() + ring.size() - 1, starts, ends);
+        }
+    }
+
+    private void removeFromGrid(int mask, long absRow, int pos) {
+        int dimension = gridDimension(mask);
+        double[] starts = new double[dimension];
+        double[] ends = new double[dimension];
+        if (getGridLocation(mask, pos, starts, ends))
+            grids[mask].remove(absRow, starts, ends);
+    }
+
+    // getGridLocation puts the start and end locations of the row at pos
+    // on the coordinates of mask, or on the unit sphere for GEODESIC, in
+    // starts and ends, and returns false if some of them are missing
+    private boolean getGridLocation(int mask, int pos, double[] starts, double[] ends) {
+        if (mask == GEODESIC) {
+            if (locStarts[Dimension.X] == null || locStarts[Dimension.Y] == null)
+                return false;
+            toUnitVector(locStarts[Dimension.X][pos], locStarts[Dimension.Y][pos], starts);
+            toUnitVector(locEnds[Dimension.X][pos], locEnds[Dimension.Y][pos], ends);
+            for (int c = 0; c < Dimension.MAX_SPATIAL_DIMENSION; c++) {
+                if (Double.isNaN(starts[c]) || Double.isNaN(ends[c]))
+                    return false;
+            }
+            return true;
+        }
+
+        int d = 0;
+        for (int c = 0; c < Dimension.MAX_SPATIAL_DIMENSION; c++) {
+            if ((mask & (1 << c)) == 0)
+                continue;
+            if (locStarts[c] == null)
+                return false;
+            starts[d] = locStarts[c][pos];
+            ends[d] = locEnds[c][pos];
+            if (Double.isNaN(starts[d]) || Double.isNaN(ends[d]))
+                return false;
+            d++;
+        }
+        return true;
+    }
+
+    // calcLocationDiff has the same semantics as SpatioTempoData.calcLocationDiff
+    public double calcLocationDiff(int row, int coord, double base) {
+        int pos = ring.position(row);
+        if (!located[pos] || locStarts[coord] == null)
+            return Double.NaN;
+        return Math.min(Math.abs(locStarts[coord][pos] - base),
+                        Math.abs(locEnds[coord][pos] - base));
+    }
+
+    private int allocRow() {
+        if (ring.isFull())
+            grow();
+        return ring.add();
+    }
+
+    private void commitRow(int pos) {
+        if (!located[pos])
+            numUnlocated++;
+    }
+
+    private double[] locationColumn(double[][] columns, int coord) {
+        // location columns are allocated only for stores receiving locations
+        if (columns[coord] == null) {
+            columns[coord] = new double[ring.getCapacity()];
+            Arrays.fill(columns[coord], Double.NaN);
+        }
+        return columns[coord];
+    }
+
+    private void grow() {
+        int capacity = ring.getCapacity() * 2;
+        for (int v = 0; v < numVars; v++)
+            values[v] = ring.unwrap(values[v], capacity);
+        for (int c = 0; c < Dimension.MAX_SPATIAL_DIMENSION; c++) {
+            if (locStarts[c] != null) {
+                locStarts[c] = ring.unwrap(locStarts[c], capacity);
+                locEnds[c] = ring.unwrap(locEnds[c], capacity);
+            }
+        }
+        times.grow(capacity);
+        located = ring.unwrap(located, capacity);
+        ring.grow(capacity);
+    }
+}
@@ -1,8 +1,6 @@
 package pilots.runtime;
 
 import java.io.*;
-import java.net.Socket;
-import java.net.UnknownHostException;
 import java.util.*;
 import java.util.logging.*;
 
@@ -16,30 +14,47 @@ public class ConnectionManager {
     class Connection {
         String host = null;
         int port = -1;
-        Socket sock = null;
-        PrintWriter writer = null;
+        OutputWriter output = null;
+        boolean binary = false;         // frames instead of lines, see BinaryProtocol
         int state = ConnectionManager.NULL;
 
-        Connection(String host, int port) {
+        Connection(String host, int port, boolean binary) {
             this.host = host;
             this.port = port;
+            this.binary = binary;
             this.state = NOT_CONNECTED;
         }
     }
 
     private Map<Integer, Connection> connections;   // key:connId, val:Connection
+    private int queueCapacity;
+    private int overflowPolicy;
 
     public ConnectionManager() {
         connections = new HashMap<>();
+        queueCapacity = OutputWriter.DEFAULT_CAPACITY;
+        overflowPolicy = OutputWriter.DROP_OLDEST;
+    }
+
+    // setQueue sets the capacity and the overflow policy of the queue of
+    // each output connection opened afterwards, see OutputWriter
+    public void setQueue(int capacity, int overflowPolicy) {
+        this.queueCapacity = capacity;
+        this.overflowPolicy = overflowPolicy;
     }
 
     public void create(int connId, String hostport) {
+        create(connId, hostport, false);
+    }
+
+    public void create(int connId, String hostport, boolean binary) {
         // connId is an integer specified by the PILOTS appplication
         int colon = hostport.indexOf(":");
         connections.put(
             connId,
             new Connection(hostport.substring(0, colon),
-                           Integer.parseInt(hostport.substring(colon + 1))));
+                           Integer.parseInt(hostport.substring(colon + 1)),
+                           binary));
     }
 
     public void destroy(int connId) {
@@ -55,41 +70,58 @@ public class ConnectionManager {
 
     public boolean isConnected(int connId) {
         Connection conn = connections.get(connId);
-        return conn != null && conn.state == ConnectionManager.CONNECTED;
+        return conn != null && conn.state == ConnectionManager.CONNECTED && conn.output.isOpen();
+    }
+
+    public boolean isBinary(int connId) {
+        Connection conn = connections.get(connId);
+        return conn != null && conn.binary;
     }
     
-    public PrintWriter open(int connId) {
+    // open starts connecting connId in the background and returns true if
+    // connId is ready for outputs, which are queued until connected
+    public boolean open(int connId) {
         Connection conn = connections.get(connId);
         if (conn == null) {
             LOGGER.warning("No connection found for connId: " + connId);
-            return null;
+            return false;
         }
 
-        if (conn.sock != null && conn.writer != null)
-            return conn.writer;
-
-        try {
-            conn.sock = new Socket(conn.host, conn.port);
-            if (conn.sock != null) {
-                conn.writer = new PrintWriter(conn.sock.getOutputStream(), true);
-                conn.state = ConnectionManager.CONNECTED;
-            }
-        } catch (UnknownHostException ex) {
-            LOGGER.warning(ex.toString());
-        } catch (IOException ex) {
-            LOGGER.warning(ex.toString());
-        }
+        if (conn.state == ConnectionManager.CONNECTED)
+            return true;
 
-        return conn.writer;
+        conn.output = new OutputWriter("Output " + connId + " (" + conn.host + ":" + conn.port + ")",
+                                       conn.host, conn.port, conn.binary, queueCapacity, overflowPolicy);
+        conn.output.connect();
+        conn.state = ConnectionManager.CONNECTED;
+        return true;
     }
 
-    public PrintWriter get(int connId) {
+    // getOutputWriter returns the writer of connId, e.g., for its metrics
+    public OutputWriter getOutputWriter(int connId) {
         Connection conn = connections.get(connId);
-        if (conn == null) {
-            LOGGER.warning("No conn found for connId: " + connId);            
-            return null;
+        return (conn != null) ? conn.output : null;
+    }
+
+    // writeLine queues a protocol line, e.g., the header
+    public void writeLine(int connId, String line) {
+        Connection conn = connections.get(connId);
+        if (conn == null || conn.output == null) {
+            LOGGER.warning("No conn found for connId: " + connId);
+            return;
         }
-        return conn.writer;
+        conn.output.writeLine(line);
+    }
+
+    // writeData queues a sample: line for text connections, time and values
+    // for binary connections
+    public void writeData(int connId, long time, double[] values, String line) {
+        Connection conn = connections.get(connId);
+        if (conn == null || conn.output == null) {
+            LOGGER.warning("No conn found for connId: " + connId);
+            return;
+        }
+        conn.output.writeData(time, values, line);
     }
 
     public void close(int connId) {
@@ -99,16 +131,9 @@ public class ConnectionManager {
             return;
         }
 
-        if (conn.writer != null)
-            conn.writer.close();
-
-        if (conn.sock != null) {
-            try {
-                conn.sock.close();
-            } catch (IOException ex) {
-                LOGGER.warning(ex.toString());
-            }
-        }
+        if (conn.output != null)
+            conn.output.close();
+        conn.state = ConnectionManager.NOT_CONNECTED;
     }
 
     public void closeAll() {
@@ -0,0 +1,412 @@
+package pilots.runtime;
+
+import java.text.DateFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.logging.Logger;
+
+
+// DataParser is a hand-written parser for the PILOTS data format
+//   "(<Double>(,<Double>)*(~<Double>(,<Double>)*)?)?:<Date>(~<Date>)?:(<Double>(,<Double>)*)?"
+// It reads a line straight from a CharSequence into primitive fields without
+// splitting it into Strings. Timestamps in the fixed "yyyy-MM-dd HHmmssSSSZ"
+// layout (e.g., "2009-06-01 030930000-0400") and plain decimal numbers take
+// allocation-free fast paths; anything else falls back to SimpleDateFormat
+// and Double.parseDouble. A DataParser instance is reused line by line and
+// is not thread safe.
+public class DataParser {
+    private static Logger LOGGER = Logger.getLogger(DataParser.class.getName());
+
+    private static final int TIMESTAMP_LENGTH = 25;  // "yyyy-MM-dd HHmmssSSSZ"
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // parse results
+    private boolean hasLocations;
+    private boolean isLocationInterval;
+    private int dimension;
+    private double[][] locations;     // locations[0 or 1][coord]
+    private boolean hasTimes;
+    private boolean isTimeInterval;
+    private long[] times;             // start and end in msec
+    private int numValues;
+    private double[] values;
+
+    // cache for the date part of the fast timestamp path
+    private int cachedDate;           // yyyymmdd
+    private long cachedEpochDay;
+
+    private DateFormat dateFormat;    // fallback, created on demand
+
+    public DataParser() {
+        locations = new double[2][Dimension.MAX_SPATIAL_DIMENSION];
+        times = new long[2];
+        values = new double[8];
+        cachedDate = -1;
+        cachedEpochDay = 0;
+        dateFormat = null;
+        SpatioTempoData.initTimeZone();
+    }
+
+    public boolean parse(CharSequence str) {
+        hasLocations = false;
+        isLocationInterval = false;
+        dimension = 0;
+        hasTimes = false;
+        isTimeInterval = false;
+        numValues = 0;
+
+        int length = str.length();
+        int timeStart = indexOf(str, ':', 0, length) + 1;
+        if (timeStart == 0) {
+            LOGGER.warning("Time part not found: " + str);
+            return false;
+        }
+        int valueStart = indexOf(str, ':', timeStart, length) + 1;
+        if (valueStart == 0) {
+            LOGGER.warning("Value part not found: " + str);
+            return false;
+        }
+        int valueEnd = indexOf(str, ':', valueStart, length);
+        if (valueEnd < 0)
+            valueEnd = length;
+
+        try {
+            return parseLocations(str, 0, timeStart - 1)
+                && parseTimes(str, timeStart, valueStart - 1)
+                && parseValues(str, valueStart, valueEnd);
+        } catch (NumberFormatException ex) {
+            LOGGER.warning(ex.toString());
+            return false;
+        }
+    }
+
+    // set sets the results as if a line had been parsed, for a sample
+    // decoded from a binary frame (see BinaryProtocol): the time in msec,
+    // dimension coordinates of the location, which may be 0, and numValues
+    // values
+    public void set(long time, double[] location, int dimension, double[] values, int numValues) {
+        hasLocations = (0 < dimension);
+        isLocationInterval = false;
+        this.dimension = dimension;
+        Arrays.fill(locations[0], Double.NaN);
+        System.arraycopy(location, 0, locations[0], 0, dimension);
+        System.arraycopy(locations[0], 0, locations[1], 0, Dimension.MAX_SPATIAL_DIMENSION);
+
+        hasTimes = true;
+        isTimeInterval = false;
+        times[0] = time;
+        times[1] = time;
+
+        if (this.values.length < numValues)
+            this.values = Arrays.copyOf(this.values, numValues);
+        System.arraycopy(values, 0, this.values, 0, numValues);
+        this.numValues = numValues;
+    }
+
+    public boolean hasLocations() {
+        return hasLocations;
+    }
+
+    public boolean isLocationInterval() {
+        return isLocationInterval;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    // which: 0 for the start location, 1 for the end location
+    public double getLocation(int which, int coord) {
+        return locations[which][coord];
+    }
+
+    public boolean hasTimes() {
+        return hasTimes;
+    }
+
+    public boolean isTimeInterval() {
+        return isTimeInterval;
+    }
+
+    public long getStartTime() {
+        return times[0];
+    }
+
+    public long getEndTime() {
+        return times[1];
+    }
+
+    public int getNumValues() {
+        return numValues;
+    }
+
+    public double getValue(int i) {
+        return values[i];
+    }
+
+    private boolean parseLocations(CharSequence str, int from, int to) {
+        if (from == to)
+            return true;
+
+        int tilde = indexOf(str, '~', from, to);
+        if (0 <= tilde && 0 <= indexOf(str, '~', tilde + 1, to)) {
+            LOGGER.warning("Invalid location length: " + str.subSequence(from, to));
+            return false;
+        }
+        isLocationInterval = (0 <= tilde);
+
+        int end = isLocationInterval ? tilde : to;
+        dimension = parseLocation(str, from, end, locations[0]);
+        if (dimension < 0)
+            return false;
+
+        if (isLocationInterval) {
+            int dimension2 = parseLocation(str, tilde + 1, to, locations[1]);
+            if (dimension2 < 0)
+                return false;
+            dimension = Math.max(dimension, dimension2);
+        }
+        else {
+            System.arraycopy(locations[0], 0, locations[1], 0, Dimension.MAX_SPATIAL_DIMENSION);
+        }
+
+        hasLocations = true;
+        return true;
+    }
+
+    private int parseLocation(CharSequence str, int from, int to, double[] location) {
+        Arrays.fill(location, Double.NaN);
+        int dim = 0;
+        int pos = from;
+        while (pos <= to) {
+            int comma = indexOf(str, ',', pos, to);
+            int end = (comma < 0) ? to : comma;
+            if (Dimension.MAX_SPATIAL_DIMENSION <= dim) {
+                LOGGER.warning("Invalid dimension length: " + str.subSequence(from, to));
+                return -1;
+            }
+            location[dim++] = parseDouble(str, pos, end);
+            pos = end + 1;
+        }
+        return dim;
+    }
+
+    private boolean parseTimes(CharSequence str, int from, int to) {
+        if (from == to)
+            return true;
+
+        int tilde = indexOf(str, '~', from, to);
+        if (0 <= tilde && 0 <= indexOf(str, '~', tilde + 1, to)) {
+            LOGGER.warning("Invalid time length: " + str.subSequence(from, to));
+            return false;
+        }
+        isTimeInterval = (0 <= tilde);
+
+        int end = isTimeInterval ? tilde : to;
+        if (!parseTime(str, from, end, 0))
+            return true;    // times are ignored as the original parser did
+        if (isTimeInterval) {
+            if (!parseTime(str, tilde + 1, to, 1))
+                return true;
+        }
+        else {
+            times[1] = times[0];
+        }
+
+        hasTimes = true;
+        return true;
+    }
+
+    private boolean parseTime(CharSequence str, int from, int to, int which) {
+        if (to - from == TIMESTAMP_LENGTH && parseFixedTime(str, from, which))
+            return true;
+
+        // fall back on SimpleDateFormat for other layouts
+        if (dateFormat == null)
+            dateFormat = new SimpleDateFormat(SpatioTempoData.datePattern);
+        String timeStr = str.subSequence(from, to).toString();
+        Date date = dateFormat.parse(timeStr, new ParsePosition(0));
+        if (date == null) {
+            LOGGER.warning("Unparseable date: \"" + timeStr + "\"");
+            return false;
+        }
+        times[which] = date.getTime();
+        return true;
+    }
+
+    // parseFixedTime parses "yyyy-MM-dd HHmmssSSSZ" at fixed offsets
+    private boolean parseFixedTime(CharSequence str, int from, int which) {
+        if (str.charAt(from + 4) != '-' || str.charAt(from + 7) != '-'
+            || str.charAt(from + 10) != ' ')
+            return false;
+
+        int year = digits(str, from, 4);
+        int month = digits(str, from + 5, 2);
+        int day = digits(str, from + 8, 2);
+        int hour = digits(str, from + 11, 2);
+        int minute = digits(str, from + 13, 2);
+        int second = digits(str, from + 15, 2);
+        int millis = digits(str, from + 17, 3);
+        char sign = str.charAt(from + 20);
+        int offsetHour = digits(str, from + 21, 2);
+        int offsetMinute = digits(str, from + 23, 2);
+
+        if (year < 1600 || month < 1 || 12 < month || day < 1 || 31 < day
+            || hour < 0 || 23 < hour || minute < 0 || 59 < minute
+            || second < 0 || 59 < second || millis < 0
+            || (sign != '+' && sign != '-') || offsetHour < 0 || offsetMinute < 0)
+            return false;
+
+        int date = (year * 100 + month) * 100 + day;
+        if (date != cachedDate) {
+            cachedEpochDay = epochDay(year, month, day);
+            cachedDate = date;
+        }
+
+        long offset = (offsetHour * 60L + offsetMinute) * 60 * 1000;
+        long time = cachedEpochDay * 24 * 60 * 60 * 1000
+            + ((hour * 60L + minute) * 60 + second) * 1000 + millis;
+        times[which] = (sign == '-') ? time + offset : time - offset;
+        return true;
+    }
+
+    // epochDay returns the # of days since 1970-01-01 in the Gregorian calendar
+    private static long epochDay(int year, int month, int day) {
+        long y = (month <= 2) ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (month + ((2 < month) ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    // digits returns the value of n decimal digits, or -1 if not all digits
+    private static int digits(CharSequence str, int from, int n) {
+        int value = 0;
+        for (int i = from; i < from + n; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || '9' < c)
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private boolean parseValues(CharSequence str, int from, int to) {
+        if (from == to)
+            return true;
+
+        int pos = from;
+        while (pos <= to) {
+            int comma = indexOf(str, ',', pos, to);
+            int end = (comma < 0) ? to : comma;
+            if (pos == end && isAll(str, ',', pos, to))
+                break;  // trailing empty values are ignored as String.split does
+            if (numValues == values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+            values[numValues++] = parseDouble(str, pos, end);
+            pos = end + 1;
+        }
+        return true;
+    }
+
+    // parseDouble has the same result as Double.parseDouble. Decimals with up
+    // to 15 significant digits are converted exactly without allocation.
+    public static double parseDouble(CharSequence str, int from, int to) {
+        int begin = from, end = to;
+        while (begin < end && str.charAt(begin) <= ' ')
+            begin++;
+        while (begin < end && str.charAt(end - 1) <= ' ')
+            end--;
+
+        int pos = begin;
+        boolean negative = false;
+        if (pos < end && (str.charAt(pos) == '-' || str.charAt(pos) == '+')) {
+            negative = (str.charAt(pos) == '-');
+            pos++;
+        }
+
+        long mantissa = 0;
+        int numDigits = 0;      // # of digits seen
+        int numSignificant = 0; // # of digits in mantissa except leading zeros
+        int exponent = 0;
+        boolean afterPoint = false;
+        boolean fastPath = true;
+
+        for (; pos < end; pos++) {
+            char c = str.charAt(pos);
+            if ('0' <= c && c <= '9') {
+                numDigits++;
+                if (mantissa != 0 || c != '0')
+                    numSignificant++;
+                if (18 < numSignificant) {
+                    fastPath = false;
+                    break;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (afterPoint)
+                    exponent--;
+            }
+            else if (c == '.' && !afterPoint) {
+                afterPoint = true;
+            }
+            else {
+                break;
+            }
+        }
+
+        if (fastPath && pos < end && (str.charAt(pos) == 'e' || str.charAt(pos) == 'E')) {
+            pos++;
+            boolean negativeExp = false;
+            if (pos < end && (str.charAt(pos) == '-' || str.charAt(pos) == '+')) {
+                negativeExp = (str.charAt(pos) == '-');
+                pos++;
+            }
+            int exp = 0, numExpDigits = 0;
+            for (; pos < end && numExpDigits < 4; pos++, numExpDigits++) {
+                char c = str.charAt(pos);
+                if (c < '0' || '9' < c)
+                    break;
+                exp = exp * 10 + (c - '0');
+            }
+            if (numExpDigits == 0)
+                fastPath = false;
+            exponent += negativeExp ? -exp : exp;
+        }
+
+        if (fastPath && pos == end && 0 < numDigits) {
+            if (mantissa == 0)
+                return negative ? -0.0 : 0.0;
+            if (mantissa <= MAX_EXACT_MANTISSA && -22 <= exponent && exponent <= 22) {
+                // both operands are exact, so the result is correctly rounded
+                double d = (exponent < 0) ?
+                    mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+                return negative ? -d : d;
+            }
+        }
+
+        return Double.parseDouble(str.subSequence(from, to).toString());
+    }
+
+    private static boolean isAll(CharSequence str, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (str.charAt(i) != c)
+                return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence str, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (str.charAt(i) == c)
+                return i;
+        }
+        return -1;
+    }
+}
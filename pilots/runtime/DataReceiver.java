@@ -2,91 +2,416 @@ package pilots.runtime;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import pilots.runtime.*;
 
 
+// DataReceiver receives input streams from many producers on a few threads.
+// An acceptor thread hands accepted connections to DataReceiver instances
+// in round robin; each DataReceiver multiplexes its connections on a NIO
+// Selector and frames lines out of a direct ByteBuffer.
+//
+// Protocol per connection:
+//   @tenant            (optional) selects the RuntimeContext of a tenant
+//                      hosted by TenantHost, the default context otherwise
+//   #var1,var2,...     header, selects the DataStore
+//   <data>             one line per sample, see SpatioTempoData
+//   <empty line>       end of stream
+// A producer sending the line "!binary" first sends the rest as binary
+// frames instead of lines, see BinaryProtocol.
+//
+// Streams can be partitioned by a key, which selects the tenant, i.e., the
+// stores and the program instance, that a sample goes to:
+//   #var1,var2,...@key       the whole stream belongs to the tenant key
+//   key@<data>               the sample belongs to the tenant key
+// so that one connection can carry the samples of many sources. Only
+// "@tenant" and headers may start a tenant, see TenantHost; a sample of an
+// unknown key is logged and skipped, and the connection stays open.
 public class DataReceiver implements Runnable  {
     private static Logger LOGGER = Logger.getLogger(SimTimeService.class.getName());
-    
+
     private static int DEFAULT_PORT = 8888;
-    private static boolean loop = true;
+    private static int BUFFER_SIZE = 64 * 1024;
+    private static volatile boolean loop = true;
     private static int globalId = 0;
-    private Socket sock;
+    private static ServerSocketChannel serverChannel = null;
+    private static List<DataReceiver> receivers = new ArrayList<>();
+    private static RuntimeContext defaultContext = RuntimeContext.getDefault();
+    private static BiFunction<String, Boolean, RuntimeContext> tenants = null;
+
     private int id;
-    
-    public DataReceiver(Socket sock) {
-        this.sock = sock;
-        this.id = globalId++;
+    private Selector selector;
+    private Queue<SocketChannel> pendingChannels;   // accepted, not registered yet
+    private ByteBuffer readBuffer;
+
+    // Connection keeps the per-producer state
+    class Connection {
+        int id;
+        StringBuilder line = new StringBuilder();
+        byte[] bytes = new byte[256];     // current line, raw bytes
+        int numBytes = 0;
+        String varNames = null;
+        DataStore dataStore = null;
+        RuntimeContext context = defaultContext;
+        Map<String, DataStore> keyedStores = new HashMap<>();   // key:partition key
+        boolean binary = false;             // bytes hold frames instead of a line
+        double[] location = new double[Dimension.MAX_SPATIAL_DIMENSION];
+        double[] values = new double[8];
+
+        Connection(int id) {
+            this.id = id;
+        }
+    }
+
+    public DataReceiver(int id) throws IOException {
+        this.id = id;
+        this.selector = Selector.open();
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private void threadLog(Level level, Connection conn, String msg) {
+        LOGGER.log(level, "(Thread " + id + ", Conn " + conn.id + ") " + msg);
     }
 
-    private void threadLog(Level level, String msg) {
-        LOGGER.log(level, "(Thread " + id + ") " + msg);
+    private void addChannel(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
     }
 
     public void run() {
-        threadLog(Level.INFO, "Started");
+        LOGGER.info("(Thread " + id + ") Started");
 
         try {
+            while (loop) {
+                selector.select();
+                registerPendingChannels();
 
-            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            String str = null, varNames = null;
-            DataStore dataStore = null;
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isReadable())
+                        read(key);
+                }
+            }
+            for (SelectionKey key : selector.keys())
+                key.channel().close();
+            selector.close();
+        } catch (IOException ex) {
+            LOGGER.severe(ex.toString());
+        }
+
+        LOGGER.info("(Thread " + id + ") Finished");
+    }
 
-            while ((str = in.readLine()) != null) {
-                if (str.length() == 0) {
-                    threadLog(Level.INFO, "EOS marker received");
+    private void registerPendingChannels() throws IOException {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            Connection conn;
+            synchronized (DataReceiver.class) {
+                conn = new Connection(globalId++);
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, conn);
+            threadLog(Level.INFO, conn, "Started");
+        }
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection conn = (Connection)key.attachment();
+        boolean open = true;
+
+        try {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                // end of stream without the EOS marker; flush the last line
+                if (0 < conn.numBytes && !conn.binary)
+                    handleLine(conn);
+                open = false;
+            }
+            readBuffer.flip();
+            while (open && readBuffer.hasRemaining()) {
+                if (conn.binary) {
+                    open = readFrames(conn);
                     break;
                 }
-                else if (str.charAt(0) == '#') {
-                    threadLog(Level.INFO, "First line received: " + str);
-                    varNames = str;
-                    synchronized (this) {
-                        dataStore = DataStore.getInstance(str);
-                    }
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    open = handleLine(conn);
                 }
                 else {
-                    if (dataStore == null) {
-                        threadLog(Level.WARNING, "No data store");
-                        break;
-                    }
+                    if (conn.numBytes == conn.bytes.length)
+                        conn.bytes = Arrays.copyOf(conn.bytes, conn.bytes.length * 2);
+                    conn.bytes[conn.numBytes++] = b;
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.severe(ex.toString());
+            open = false;
+        } catch (RuntimeException ex) {
+            // e.g., thrown by a tenant program being started; only this
+            // connection is closed, the others on the selector are kept
+            threadLog(Level.SEVERE, conn, ex.toString());
+            open = false;
+        }
+
+        if (!open) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.severe(ex.toString());
+            }
+            threadLog(Level.INFO, conn, "Finished");
+        }
+    }
+
+    // readFrames appends the rest of readBuffer to the frames buffered in
+    // conn, processes the complete ones and returns false if the connection
+    // should be closed
+    private boolean readFrames(Connection conn) throws IOException {
+        int n = readBuffer.remaining();
+        if (conn.bytes.length < conn.numBytes + n)
+            conn.bytes = Arrays.copyOf(conn.bytes, Math.max(conn.bytes.length * 2, conn.numBytes + n));
+        readBuffer.get(conn.bytes, conn.numBytes, n);
+        conn.numBytes += n;
+
+        ByteBuffer frames = ByteBuffer.wrap(conn.bytes, 0, conn.numBytes);
+        boolean open = true;
+        int length;
+        while (open && 0 <= (length = BinaryProtocol.frameLength(frames))) {
+            int next = frames.position() + length;
+            open = handleFrame(conn, frames);
+            frames.position(next);
+        }
+
+        // keep the incomplete frame for the next read
+        conn.numBytes = frames.remaining();
+        System.arraycopy(conn.bytes, frames.position(), conn.bytes, 0, conn.numBytes);
+        return open;
+    }
+
+    // handleFrame processes the complete frame at the position of frames
+    private boolean handleFrame(Connection conn, ByteBuffer frames) {
+        switch (frames.get()) {
+        case BinaryProtocol.LINE:
+            int length = frames.getShort() & 0xffff;
+            decodeLine(conn.bytes, frames.position(), frames.position() + length, conn.line);
+            return processLine(conn);
+
+        case BinaryProtocol.DATA:
+            if (conn.dataStore == null) {
+                threadLog(Level.WARNING, conn, "No data store");
+                return false;
+            }
+            long time = frames.getLong();
+            int dimension = frames.get() & 0xff;
+            for (int c = 0; c < dimension; c++)
+                conn.location[c] = frames.getDouble();
+            int numValues = frames.getShort() & 0xffff;
+            if (conn.values.length < numValues)
+                conn.values = new double[numValues];
+            for (int i = 0; i < numValues; i++)
+                conn.values[i] = frames.getDouble();
+            conn.dataStore.addData(time, conn.location, dimension, conn.values, numValues);
+            return true;
+
+        default:
+            // END, the only other type accepted by frameLength
+            threadLog(Level.INFO, conn, "EOS marker received");
+            return false;
+        }
+    }
 
-                    threadLog(Level.FINER, "Data received for \"" + varNames + "\": " + str);
-                    dataStore.addData(str);
+    // handleLine processes the line buffered in conn and returns false if
+    // the connection should be closed
+    private boolean handleLine(Connection conn) {
+        decodeLine(conn);
+        return processLine(conn);
+    }
+
+    // processLine processes the line decoded into conn.line
+    private boolean processLine(Connection conn) {
+        StringBuilder str = conn.line;
+
+        if (str.length() == 0) {
+            threadLog(Level.INFO, conn, "EOS marker received");
+            return false;
+        }
+        else if (str.charAt(0) == '!' && BinaryProtocol.PREAMBLE.contentEquals(str)) {
+            threadLog(Level.INFO, conn, "Binary frames selected");
+            conn.binary = true;
+        }
+        else if (str.charAt(0) == '@') {
+            String tenant = str.substring(1).trim();
+            RuntimeContext context = getTenantContext(tenant, true);
+            if (context == null) {
+                threadLog(Level.WARNING, conn, "Unknown tenant: " + tenant);
+                return false;
+            }
+            threadLog(Level.INFO, conn, "Tenant selected: " + tenant);
+            // a header for the tenant should follow
+            conn.context = context;
+            conn.varNames = null;
+            conn.dataStore = null;
+        }
+        else if (str.charAt(0) == '#') {
+            threadLog(Level.INFO, conn, "First line received: " + str);
+            int at = str.indexOf("@");
+            if (0 <= at) {
+                String tenant = str.substring(at + 1).trim();
+                RuntimeContext context = getTenantContext(tenant, true);
+                if (context == null) {
+                    threadLog(Level.WARNING, conn, "Unknown tenant: " + tenant);
+                    return false;
                 }
+                conn.context = context;
+                str.setLength(at);
+            }
+            conn.varNames = str.toString();
+            conn.dataStore = DataStore.getInstance(conn.context, conn.varNames);
+            conn.keyedStores.clear();
+        }
+        else {
+            if (conn.dataStore == null) {
+                threadLog(Level.WARNING, conn, "No data store");
+                return false;
+            }
 
+            DataStore dataStore = conn.dataStore;
+            // partition keys are read only when tenants are hosted
+            int at = (tenants != null) ? indexOf(str, '@') : -1;
+            if (0 <= at) {
+                // the sample of a partition key
+                String key = str.substring(0, at);
+                dataStore = conn.keyedStores.get(key);
+                if (dataStore == null) {
+                    RuntimeContext context = getTenantContext(key, false);
+                    if (context == null) {
+                        // only this sample is dropped, not the other keys
+                        threadLog(Level.WARNING, conn, "Unknown tenant, line skipped: " + str);
+                        return true;
+                    }
+                    dataStore = DataStore.getInstance(context, conn.varNames);
+                    conn.keyedStores.put(key, dataStore);
+                }
+                str.delete(0, at + 1);
             }
 
-            in.close();
-            sock.close();
+            if (LOGGER.isLoggable(Level.FINER))
+                threadLog(Level.FINER, conn, "Data received for \"" + conn.varNames + "\": " + str);
+            dataStore.addData(str);
+        }
 
-        } catch (IOException ex) {
-            LOGGER.severe(ex.toString());
+        return true;
+    }
+
+    private static RuntimeContext getTenantContext(String tenant, boolean create) {
+        return (tenants != null) ? tenants.apply(tenant, create) : null;
+    }
+
+    private static int indexOf(StringBuilder str, char c) {
+        // StringBuilder.indexOf takes a String
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) == c)
+                return i;
         }
+        return -1;
+    }
+
+    private void decodeLine(Connection conn) {
+        decodeLine(conn.bytes, conn.numBytes, conn.line);
+        conn.numBytes = 0;
+    }
 
-        threadLog(Level.INFO, "Finished");
+    // decodeLine decodes a line of numBytes bytes into line
+    static void decodeLine(byte[] bytes, int numBytes, StringBuilder line) {
+        decodeLine(bytes, 0, numBytes, line);
+    }
+
+    // decodeLine decodes a line in bytes[from..to) into line
+    static void decodeLine(byte[] bytes, int from, int to, StringBuilder line) {
+        // strip "\r" as BufferedReader.readLine does
+        if (from < to && bytes[to - 1] == '\r')
+            to--;
+
+        line.setLength(0);
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b < 0) {
+                // non-ASCII, decode the whole line as UTF-8
+                line.setLength(0);
+                line.append(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+                return;
+            }
+            line.append((char)b);
+        }
     }
 
     public static void startServer(int port) {
+        DataReceiver.tenants = null;
+        startServer(port, defaultNumReceivers());
+    }
+
+    // startServer with tenants, which returns the context of a tenant id,
+    // or null if the tenant is unknown. Its second argument is true for
+    // "@tenant" and headers, which may start the tenant, and false for the
+    // samples of a partition key.
+    public static void startServer(int port, BiFunction<String, Boolean, RuntimeContext> tenants) {
+        DataReceiver.tenants = tenants;
+        startServer(port, defaultNumReceivers());
+    }
+
+    private static int defaultNumReceivers() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    public static void startServer(int port, int numReceivers) {
         loop = true;
+        // connections without "@tenant" feed the context of the caller
+        defaultContext = RuntimeContext.current();
         final int serverPort = port;
 
-        // daemon thread listening port 8888
-        new Thread() {
+        final List<DataReceiver> newReceivers = new ArrayList<>();
+        try {
+            for (int i = 0; i < numReceivers; i++) {
+                DataReceiver receiver = new DataReceiver(i);
+                newReceivers.add(receiver);
+                new Thread(receiver, "DataReceiver-" + i).start();
+            }
+        } catch (IOException ex) {
+            LOGGER.severe(ex.toString());
+            return;
+        }
+        receivers = newReceivers;
+
+        // acceptor thread listening port 8888
+        new Thread("DataReceiver-acceptor") {
             public void run() {
                 try {
-                    ServerSocket serverSock = new ServerSocket(serverPort);
+                    serverChannel = ServerSocketChannel.open();
+                    serverChannel.bind(new InetSocketAddress(serverPort));
                     LOGGER.info("Started listening to port:" + serverPort);
 
+                    int next = 0;
                     while (loop) {
-                        Socket newSock = serverSock.accept();
-                        DataReceiver dataReceiver = new DataReceiver(newSock);
-                        Thread t = new Thread(dataReceiver);
-                        t.start();
-                    } 
+                        SocketChannel channel = serverChannel.accept();
+                        newReceivers.get(next).addChannel(channel);
+                        next = (next + 1) % newReceivers.size();
+                    }
                 } catch (Exception ex) {
-                    LOGGER.severe(ex.toString());                    
+                    if (loop)
+                        LOGGER.severe(ex.toString());
                 }
             }
         }.start();
@@ -94,6 +419,14 @@ public class DataReceiver implements Runnable  {
 
     public static void stopServer() {
         loop = false;
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException ex) {
+            LOGGER.severe(ex.toString());
+        }
+        for (DataReceiver receiver : receivers)
+            receiver.selector.wakeup();
     }
 
     public static void main(String[] args) {
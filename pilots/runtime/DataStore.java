@@ -3,6 +3,8 @@ package pilots.runtime;
 import java.text.ParseException;
 import java.util.logging.Logger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
 
 import pilots.util.trainer.DataVector;
 import pilots.util.model.Client;
@@ -11,42 +13,62 @@ import pilots.util.model.Client;
 public class DataStore {
     private static Logger LOGGER = Logger.getLogger(SimTimeService.class.getName());
     
-    private static List<DataStore> stores = null;
-    private static CurrentLocationTimeService currLocTime = null;
-    private static Comparator<SpatioTempoData> distComparator = null;
+    private static final int[] ALL_ROWS = new int[0];
+    private static final int MIN_INDEXED_ROWS = 64;    // smaller stores are scanned
+    private static final Double MODEL_REQUIRED = Double.valueOf(Double.NaN);  // compared by identity
     private static int MAX_DATA_NUM = 8192; // TODO: optimize this number depending on sim or real mode
-    private static Map<String, Method[]> methodDictionary = new HashMap<>();
+    // the registry of stores is in the context, built when headers arrive
+    // so that lookups on every evaluation tick are hash lookups
+    private RuntimeContext context;
+    private CurrentLocationTimeService currLocTime;
     private String[] varNames;
-    private List<SpatioTempoData> data;
+    private Map<String, Integer> varIndices;   // varName -> index in varNames
+    // Writers (addData) hold the write lock of lock while they modify
+    // columns. Readers (getData) never block: they read the columns with an
+    // optimistic stamp and retry if a writer has held the lock meanwhile.
+    private ColumnStore columns;    // in arrival (time) order
+    private DataParser parser;      // reused for every addData, guarded by lock
+    private final StampedLock lock = new StampedLock();
+    private volatile long version = 0;  // # of samples added, see getVersion
 
     
     public DataStore(String[] varNames) {
+        this(varNames, MAX_DATA_NUM);
+    }
+
+    public DataStore(String[] varNames, int capacity) {
+        this(RuntimeContext.current(), varNames, capacity);
+    }
+
+    public DataStore(RuntimeContext context, String[] varNames, int capacity) {
+        this.context = context;
         this.varNames = new String[varNames.length];
-        methodDictionary = new HashMap<>();
         for (int i = 0; i < varNames.length; i++)
             this.varNames[i] = varNames[i];        // shallow copy
+        varIndices = new HashMap<>();
+        for (int i = 0; i < varNames.length; i++)
+            varIndices.putIfAbsent(varNames[i], i);
 
-        data = new ArrayList<>();
-
-        if (currLocTime == null) 
-            currLocTime = ServiceFactory.getCurrentLocationTime();
+        // varNames[0] is always empty due to an issue on parseVarNames
+        columns = new ColumnStore(Math.max(varNames.length - 1, 1), capacity);
+        parser = new DataParser();
 
-        if (distComparator == null) {
-            distComparator = new Comparator<SpatioTempoData> () {
-                public int compare(SpatioTempoData stData1, SpatioTempoData stData2) {
-                    double dist1 = stData1.getDist();
-                    double dist2 = stData2.getDist();
-                    return Double.compare(dist1, dist2); // ascending order 
-                }
-            };
-        }
+        currLocTime = context.getCurrentLocationTime();
     }
 
     public static DataStore getInstance(String str) {
-        if (stores == null) {
-            stores = new ArrayList<DataStore>();
-        }
+        return getInstance(str, MAX_DATA_NUM);
+    }
+
+    public static DataStore getInstance(String str, int capacity) {
+        return getInstance(RuntimeContext.current(), str, capacity);
+    }
+
+    public static DataStore getInstance(RuntimeContext context, String str) {
+        return getInstance(context, str, MAX_DATA_NUM);
+    }
 
+    public static DataStore getInstance(RuntimeContext context, String str, int capacity) {
         String[] varNames;
         try {
             varNames = parseVarNames(str);
@@ -56,87 +78,100 @@ public class DataStore {
         }
 
         // check if the variables are in the store already, otherwise create a new one
-        DataStore foundStore = null, store;
-        for (int i = 0; i < stores.size(); i++) {
-            store = stores.get(i);
-            if (store.hasIdenticalVarNames(varNames)) {
-                foundStore = store;
-                break;
+        String key = headerKey(varNames);
+        DataStore store;
+        synchronized (context) {
+            store = context.storesByHeader.get(key);
+
+            if (store == null) {
+                store = new DataStore(context, varNames, capacity);
+                for (int i = 0; i < varNames.length; i++) {
+                    if (0 < varNames[i].length())
+                        context.storesByVarName.putIfAbsent(varNames[i], store);
+                }
+                context.storesByHeader.put(key, store);
+                LOGGER.info("Created DataStore for " + str);
+            }
+            else {
+                LOGGER.info("Found exsiting DataStore for " + str);
             }
-        }
-
-        if (foundStore == null) {
-            store = new DataStore(varNames);
-            stores.add(store);
-            LOGGER.info("Created DataStore for " + str);
-        }
-        else {
-            store = foundStore;
-            LOGGER.info("Found exsiting DataStore for " + str);
         }
         return store;
     }
 
     public static DataStore findStore(String varName) {
+        return findStore(RuntimeContext.current(), varName);
+    }
+
+    public static DataStore findStore(RuntimeContext context, String varName) {
         LOGGER.finest("findStore, varName=" + varName);
-        DataStore store = null;
+        return context.storesByVarName.get(varName);
+    }
 
-        if (stores == null) {
-            return null;
-        }
+    // headerKey returns the same key for headers having the same variables
+    // in any order
+    private static String headerKey(String[] varNames) {
+        String[] sorted = Arrays.copyOf(varNames, varNames.length);
+        Arrays.sort(sorted);
+        return String.join(",", sorted);
+    }
 
-        boolean found = false;
-        for (int i = 0; i < stores.size(); i++) {
-            store = stores.get(i);
-            if (store.containsVarName(varName)) {
-                LOGGER.finest("Store found!!");
-                found = true;
-                break;
-            }
-        }
 
-        return found ? store : null;
+    // A working set of rows is represented by an int[] of row indices in
+    // ascending order; ALL_ROWS stands for all the rows in the store.
+    private int numRows(int[] rows) {
+        return (rows == ALL_ROWS) ? columns.size() : rows.length;
     }
 
+    private int row(int[] rows, int i) {
+        return (rows == ALL_ROWS) ? i : rows[i];
+    }
 
-    private List<SpatioTempoData> applyClosest(List<SpatioTempoData> data, String arg) {
+    private int[] applyClosest(int[] rows, int coord, TimeIndex.Cursor cursor) {
         LOGGER.finest("Entering applyClosest");
 
-        List<SpatioTempoData> newData = new ArrayList<>();
-
-        int coord = Dimension.parseCoord(arg);
         if (coord == Dimension.UNKNOWN)
             return null;
 
-        if (coord == Dimension.TIME) {
+        if (coord == Dimension.TIME && rows == ALL_ROWS && columns.isOrdered()) {
+            // rows are in time order, use binary search on the time columns
             Date currTime = currLocTime.getTime();
+            LOGGER.finest("currTime=" + currTime + " (indexed)");
+            return columns.closest(currTime.getTime(), cursor);
+        }
+
+        int n = numRows(rows);
+        int[] newRows = new int[n];
+        int numNewRows = 0;
+
+        if (coord == Dimension.TIME) {
+            long currTime = currLocTime.getTime().getTime();
             LOGGER.finest("currTime=" + currTime);
 
             long minDiff = Long.MAX_VALUE;
 
-            for (int i = 0; i < data.size(); i++) {
-                SpatioTempoData stData = data.get(i);
+            for (int i = 0; i < n; i++) {
+                int r = row(rows, i);
 
-                if (!stData.hasTimes()) {
-                    // if the data has no time, we just add all the data to newData
-                    newData.add(stData);
+                if (!columns.hasTimes(r)) {
+                    // if the data has no time, we just add all the data to newRows
+                    newRows[numNewRows++] = r;
                 }
                 else {
-                    long diff = stData.calcTimeDiff(currTime);
+                    long diff = columns.calcTimeDiff(r, currTime);
                     LOGGER.finest("i=" + i + ", minDiff=" + minDiff + ", diff=" + diff);
-                    stData.print();
                     if (diff < minDiff) {
                         LOGGER.finest("Clo, dist < minDist: ");
-                        newData.clear();
-                        newData.add(stData);
+                        numNewRows = 0;
+                        newRows[numNewRows++] = r;
                         minDiff = diff;
                     }
                     else if (diff == minDiff) {
                         LOGGER.finest("Clo, dist == minDist: ");
-                        newData.add(stData);
+                        newRows[numNewRows++] = r;
                     }
 
-                    if (diff == 0.0) {
+                    if (diff == 0) {
                         LOGGER.finest("Clo, exact data found, exit the loop");
                         break;
                     }
@@ -146,24 +181,33 @@ public class DataStore {
         else {
             // Dimension.X or Y or Z
             double[] currLocation = currLocTime.getLocation();
+            if (rows == ALL_ROWS && currLocation != null && columns.isLocated()
+                && columns.hasSpatialIndex(ColumnStore.coordMask(new int[] { coord }))) {
+                int[] found = columns.closestLocations(new int[] { coord }, currLocation);
+                if (1 < found.length && columns.calcLocationDiff(found[0], coord, currLocation[coord]) == 0.0) {
+                    // the first exact match as below
+                    return new int[] { found[0] };
+                }
+                return found;
+            }
             double minDiff = Double.MAX_VALUE;
 
-            for (int i = 0; i < data.size(); i++) {
-                SpatioTempoData stData = data.get(i);
+            for (int i = 0; i < n; i++) {
+                int r = row(rows, i);
 
-                if (!stData.hasLocations()) {
-                    newData.add(stData);
+                if (!columns.hasLocations(r)) {
+                    newRows[numNewRows++] = r;
                 }
                 else {
-                    double diff = stData.calcLocationDiff(coord, currLocation[ coord ]);
+                    double diff = columns.calcLocationDiff(r, coord, currLocation[ coord ]);
 
                     if (diff < minDiff) {
-                        newData.clear();
-                        newData.add(stData);
+                        numNewRows = 0;
+                        newRows[numNewRows++] = r;
                         minDiff = diff;
                     }
                     else if (diff == minDiff) {
-                        newData.add(stData);
+                        newRows[numNewRows++] = r;
                     }
 
                     if (diff == 0.0) {
@@ -174,232 +218,439 @@ public class DataStore {
             }
         }
 
-        for (int i = 0; i < newData.size(); i++) 
-            LOGGER.finest("newData[" + i + "]=" + newData.get(i));
-
-        return newData;
+        return Arrays.copyOf(newRows, numNewRows);
     }
 
-    private List<SpatioTempoData> applyEuclidean(List<SpatioTempoData> data, String[] args) {
+    private int[] applyEuclidean(int[] rows, int[] coords) {
         LOGGER.finest("Entering applyEuclidean");
 
-        List<SpatioTempoData> newData = new ArrayList<>();
-
         double[] currLoc = currLocTime.getLocation();
         if (currLoc == null) {
             LOGGER.warning("Current location is null");
             return null;
         }
 
-        int[] coords = new int[3];
-        int dimension = args.length;
+        if (rows == ALL_ROWS && 0 <= ColumnStore.coordMask(coords)
+            && columns.hasSpatialIndex(ColumnStore.coordMask(coords)))
+            return columns.closestLocations(coords, currLoc);
 
-        for (int i = 0; i < dimension; i++)
-            coords[i] = Dimension.parseCoord(args[i]);
+        int dimension = coords.length;
         double minDist = Double.MAX_VALUE;
 
         for (int i = 0; i < currLoc.length; i++)
             LOGGER.finest("Euc, currLoc[" + i + "]=" + currLoc[i]);
 
-        for (int i = 0; i < data.size(); i++) {
-            SpatioTempoData stData = data.get(i);
+        int n = numRows(rows);
+        int[] newRows = new int[n];
+        int numNewRows = 0;
+
+        for (int i = 0; i < n; i++) {
+            int r = row(rows, i);
 
             double diff, sum = 0.0;
             // we can assume 2-D <= dimension
             for (int j = 0; j < dimension; j++) {
-                diff = stData.calcLocationDiff(coords[j], currLoc[coords[j]]);
+                diff = columns.calcLocationDiff(r, coords[j], currLoc[coords[j]]);
                 sum += (diff * diff);
             }
             double dist = Math.sqrt(sum);
 
             if (dist < minDist) {
                 LOGGER.finest("Euc, dist(" + dist + ") < minDist(" + minDist + "): ");
-// stData.print();
-                newData.clear();
-                newData.add(stData);
+                numNewRows = 0;
+                newRows[numNewRows++] = r;
                 minDist = dist;
             }
             else if (dist == minDist) {
-// System.out.print("Euc, dist(" + dist + ") == minDist(" + minDist + "): ");
-// stData.print();
-                newData.add(stData);
+                newRows[numNewRows++] = r;
             }
         }
 
-        return newData;
+        return Arrays.copyOf(newRows, numNewRows);
     }
 
-    private SpatioTempoData[] sortInTimeDist(List<SpatioTempoData> data, Date currTime) {
-        SpatioTempoData[] stDataArray = data.toArray(new SpatioTempoData[data.size()]);
-        
-        for (int i = 0; i < stDataArray.length; i++) {
-            long diff = stDataArray[i].calcTimeDiff(currTime);
-            stDataArray[i].setDist((double)diff);
+    // applyGeodesic keeps the rows closest to the current location by the
+    // great-circle distance, where coords are the coordinates of the
+    // latitude and the longitude in degrees, e.g., geodesic(lat, long)
+    private int[] applyGeodesic(int[] rows, int[] coords) {
+        LOGGER.finest("Entering applyGeodesic");
+
+        double[] currLoc = currLocTime.getLocation();
+        if (currLoc == null) {
+            LOGGER.warning("Current location is null");
+            return null;
         }
+        double lat = currLoc[coords[0]];
+        double lon = currLoc[coords[1]];
 
-        Arrays.sort(stDataArray, distComparator);
-        
-        return stDataArray;
+        if (rows == ALL_ROWS && coords[0] == Dimension.X && coords[1] == Dimension.Y
+            && columns.hasSpatialIndex(ColumnStore.GEODESIC))
+            return columns.closestGeodesic(lat, lon);
+
+        double minDist = Double.MAX_VALUE;
+        int n = numRows(rows);
+        int[] newRows = new int[n];
+        int numNewRows = 0;
+
+        for (int i = 0; i < n; i++) {
+            int r = row(rows, i);
+            double dist = columns.calcGeodesicDist(r, coords[0], coords[1], lat, lon);
+
+            if (dist < minDist) {
+                numNewRows = 0;
+                newRows[numNewRows++] = r;
+                minDist = dist;
+            }
+            else if (dist == minDist) {
+                newRows[numNewRows++] = r;
+            }
+        }
+
+        return Arrays.copyOf(newRows, numNewRows);
     }
 
-    private SpatioTempoData[] sortIn1D_Dist(List<SpatioTempoData> data, int coord, double[] currLoc) {
-        SpatioTempoData[] stDataArray = data.toArray(new SpatioTempoData[data.size()]);
-        
-        for (int i = 0; i < stDataArray.length; i++) {
-            double diff = stDataArray[i].calcLocationDiff(coord, currLoc[ coord ]);
-            stDataArray[i].setDist(diff);
+    // selectNearest returns the indices of the k smallest dists in
+    // ascending order of dists, ties in the order of the indices, i.e., the
+    // first k indices of a stable sort. Only k indices are kept in a heap
+    // rather than sorting all of them.
+    private static int[] selectNearest(double[] dists, int k) {
+        k = Math.min(k, dists.length);
+        int[] heap = new int[k];    // heap[0] is the farthest selected so far
+        int size = 0;
+        for (int i = 0; i < dists.length; i++) {
+            if (size < k) {
+                heap[size] = i;
+                siftUp(heap, size++, dists);
+            }
+            else if (0 < k && isCloser(i, heap[0], dists)) {
+                heap[0] = i;
+                siftDown(heap, 0, size, dists);
+            }
         }
 
-        Arrays.sort(stDataArray, distComparator);
-        
-        return stDataArray;
+        // heapsort in ascending order
+        for (int last = size - 1; 0 < last; last--) {
+            int tmp = heap[0];
+            heap[0] = heap[last];
+            heap[last] = tmp;
+            siftDown(heap, 0, last, dists);
+        }
+        return heap;
     }
 
-    private SpatioTempoData[] sortIn2D_Dist(List<SpatioTempoData> data, int[] coords, double[] currLoc) {
-        SpatioTempoData[] stDataArray = data.toArray(new SpatioTempoData[data.size()]);
-        
-        for (int i = 0; i < stDataArray.length; i++) {
+    private static boolean isCloser(int i1, int i2, double[] dists) {
+        int c = Double.compare(dists[i1], dists[i2]);
+        return c < 0 || (c == 0 && i1 < i2);
+    }
+
+    private static void siftUp(int[] heap, int pos, double[] dists) {
+        while (0 < pos) {
+            int parent = (pos - 1) / 2;
+            if (!isCloser(heap[parent], heap[pos], dists))
+                break;
+            int tmp = heap[parent];
+            heap[parent] = heap[pos];
+            heap[pos] = tmp;
+            pos = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int pos, int size, double[] dists) {
+        while (true) {
+            int farthest = pos;
+            int left = 2 * pos + 1;
+            int right = left + 1;
+            if (left < size && isCloser(heap[farthest], heap[left], dists))
+                farthest = left;
+            if (right < size && isCloser(heap[farthest], heap[right], dists))
+                farthest = right;
+            if (farthest == pos)
+                break;
+            int tmp = heap[farthest];
+            heap[farthest] = heap[pos];
+            heap[pos] = tmp;
+            pos = farthest;
+        }
+    }
+
+    private double[] calcTimeDists(int[] rows, Date currTime) {
+        double[] dists = new double[numRows(rows)];
+        for (int i = 0; i < dists.length; i++)
+            dists[i] = (double)columns.calcTimeDiff(row(rows, i), currTime.getTime());
+        return dists;
+    }
+
+    private double[] calcLocationDists(int[] rows, int[] coords, double[] currLoc) {
+        double[] dists = new double[numRows(rows)];
+        for (int i = 0; i < dists.length; i++) {
+            if (coords.length == 1) {
+                dists[i] = columns.calcLocationDiff(row(rows, i), coords[0], currLoc[ coords[0] ]);
+                continue;
+            }
+
             double diff, sum = 0.0;
             for (int j = 0; j < coords.length; j++) {
-                diff = stDataArray[i].calcLocationDiff(coords[j], currLoc[ coords[j] ]);
+                diff = columns.calcLocationDiff(row(rows, i), coords[j], currLoc[ coords[j] ]);
                 sum += (diff * diff);
             }
-            stDataArray[i].setDist(Math.sqrt(sum));
+            dists[i] = Math.sqrt(sum);
         }
-
-        Arrays.sort(stDataArray, distComparator);
-        
-        return stDataArray;
-    }
-
-    private SpatioTempoData[] sortIn3D_Dist(List<SpatioTempoData> data, int[] coords, double[] currLoc) {
-        return sortIn2D_Dist(data, coords, currLoc);
+        return dists;
     }
 
         
-    private Double applyInterpolation(List<SpatioTempoData> data, String[] args, int varIndex) {
+    private Double applyInterpolation(int[] rows, Method method, int varIndex,
+                                      TimeIndex.Cursor cursor) {
         LOGGER.finest("Entering applyInterpolation");
 
-        int dimension = args.length - 1; // last arg is n_interp
-        int numInterp;
-        try {
-            numInterp = Integer.parseInt(args[args.length - 1]);
-        } catch (Exception ex) {
-            ex.printStackTrace();
+        int[] coords = method.getCoords();  // without n_interp
+        int dimension = coords.length;
+        int numInterp = method.getNumInterp();
+        if (numInterp < 0)
             return null;
-        }
 
-        SpatioTempoData[] stDataArray = null;
+        double[] dists = null;
         Date currTime = null;;
         double[] currLoc = null;
-        int[] coords = null;
         
         switch (dimension) {
         case Dimension.ONE_DIMENSION:
-            if (args[0].equalsIgnoreCase("t")) {
+            if (coords[0] == Dimension.TIME) {
                 // t
                 currTime = currLocTime.getTime();
-                stDataArray = sortInTimeDist(data, currTime);
+                if (rows == ALL_ROWS && columns.isOrdered()) {
+                    // rows are in time order, only rows around currTime
+                    // can be the closest ones
+                    int[] range = columns.nearest(currTime.getTime(), numInterp, cursor);
+                    rows = new int[range[1] - range[0]];
+                    for (int i = 0; i < rows.length; i++)
+                        rows[i] = range[0] + i;
+                }
+                dists = calcTimeDists(rows, currTime);
             }
             else  {
                 // x or y or z
                 currLoc = currLocTime.getLocation();
-                coords = new int[1];
-                coords[0] = Dimension.parseCoord(args[0]);
-                stDataArray = sortIn1D_Dist(data, coords[0], currLoc);
+                dists = calcLocationDists(rows, coords, currLoc);
             }
             break;
 
         case Dimension.TWO_DIMENSION:
-            // (x,y) or (x,z) or (y,z)
-            currLoc = currLocTime.getLocation();
-            coords = new int[2];
-            for (int i = 0; i < dimension; i++)
-                coords[i] = Dimension.parseCoord(args[i]);
-            stDataArray = sortIn2D_Dist(data, coords, currLoc);
-            break;
-
         case Dimension.THREE_DIMENSION:
-            // (x,y,z)
+            // (x,y) or (x,z) or (y,z) or (x,y,z)
             currLoc = currLocTime.getLocation();
-            coords = new int[3];
-            for (int i = 0; i < dimension; i++)
-                coords[i] = Dimension.parseCoord(args[i]);
-            stDataArray = sortIn3D_Dist(data, coords, currLoc);
+            dists = calcLocationDists(rows, coords, currLoc);
             break;
             
         default:
-            LOGGER.warning("applyEuclidean failed due to unknown dimension: " + dimension);
-            break;
+            LOGGER.warning("applyInterpolation failed due to unknown dimension: " + dimension);
+            return null;
         }
 
         if (currTime != null)
             LOGGER.finest("currTime=" + currTime);
+
+        // nearest is in ascending order of whatever distance
+        int[] nearest = selectNearest(dists, numInterp);
+        numInterp = nearest.length;
         
         double sum = 0.0;
-        // stDataArray must be sorted in ascending order of whatever distance
-        for (int i = 0; i < numInterp; i++) {
-            stDataArray[i].print();
-            sum += stDataArray[i].getDist();
-        }
+        for (int i = 0; i < numInterp; i++)
+            sum += dists[nearest[i]];
         double interpVal = 0.0;
         // calculate a weighted sum
         for (int i = 0; i < numInterp; i++) 
-            interpVal += (1.0 - stDataArray[i].getDist() / sum) * stDataArray[i].getData(varIndex - 1);
+            interpVal += (1.0 - dists[nearest[i]] / sum)
+                * columns.getValue(row(rows, nearest[i]), varIndex - 1);
             
         return interpVal;
     }
 
-    private int getVarIndex(String varName) {
-        for (int i = 0; i < varNames.length; i++) {
-            LOGGER.finest("varNames[" + i + "]=" + varNames[i]);
-            if (varNames[i].equals(varName)) {
-                return i;
-            }
-        }
+    int getVarIndex(String varName) {
+        Integer index = varIndices.get(varName);
 
-        // should not happen; this will cause an exception eventually
-        return -1;
+        // should not happen; -1 will cause an exception eventually
+        return (index != null) ? index : -1;
     }
 
-    public synchronized void registerMethods(String varName, Method[] methods){
-    	methodDictionary.put(varName, methods);
+    public void registerMethods(String varName, Method[] methods){
+    	context.methodDictionary.put(varName, methods);
     }
 
-    public synchronized Method[] getMethods(String varName){
-        return methodDictionary.get(varName);
+    public Method[] getMethods(String varName){
+        return context.methodDictionary.get(varName);
     }
 
-    private synchronized List<DataVector> getDatas(String[] varNames){
+    private List<DataVector> getDatas(String[] varNames){
     	List<DataVector> result = new ArrayList<>();
     	for (String var : varNames){
-	    result.add(new DataVector(findStore(var).getData(var, getMethods(var))));
+	    result.add(new DataVector(findStore(context, var).getData(var, getMethods(var))));
     	}
     	return result;
     }
 
-    private synchronized void printData(){
-        for (String s : methodDictionary.keySet()){
-            LOGGER.finest(methodDictionary.get(s).toString());
+    private void printData(){
+        for (String s : context.methodDictionary.keySet()){
+            LOGGER.finest(context.methodDictionary.get(s).toString());
         }
     }
     
     // editted: every time getData is called, register the current method 
-    public synchronized Double getData(String varName, Method[] methods) {
+    public Double getData(String varName, Method[] methods) {
         registerMethods(varName, methods);
-        List<SpatioTempoData> workData = new ArrayList<>();
-        workData = data;  // shallow copy
 
         LOGGER.finest("varName=" + varName + ", methods="
-                      + methods + ", data.size()=" + data.size());
+                      + methods + ", columns.size()=" + columns.size());
 
-        int varIndex = getVarIndex(varName);
-        
-        SpatioTempoData stData;
+        return getData(varName, getVarIndex(varName), methods, null);
+    }
+
+    // getData for an InputBinding, which has resolved the store and the
+    // column and registered its methods already
+    public Double getData(InputBinding binding) {
+        return getData(binding.getVarName(), binding.getVarIndex(), binding.getMethods(), binding.getCursor());
+    }
+
+    // getLatestData for an InputBinding resolves the variable on every call,
+    // so that samples added during the tick are read, for readers keeping
+    // their own cache such as SimTimeService
+    Double getLatestData(InputBinding binding) {
+        return resolveData(binding.getVarIndex(), binding.getMethods(), binding.getCursor());
+    }
+
+    // getData resolves varName with methods once per tick of the context
+    // (see RuntimeContext.beginTick), so that the arguments of model()
+    // inputs, e.g., the predictions of upstream models, are reused rather
+    // than read and predicted again. Samples added during the tick are
+    // read on the next one.
+    private Double getData(String varName, int varIndex, Method[] methods, TimeIndex.Cursor cursor) {
+        long tick = context.getTick();
+        if (tick == 0) {
+            // no tick has started, e.g., the store is read outside a program
+            return resolveData(varIndex, methods, cursor);
+        }
+        RuntimeContext.TickValue memo = context.tickValues.get(varName);
+        if (memo == null) {
+            memo = new RuntimeContext.TickValue();
+            context.tickValues.put(varName, memo);
+        }
+        else if (memo.tick == tick && memo.methods == methods) {
+            if (!memo.resolving)
+                return memo.value;
+            LOGGER.severe("Cyclic model() inputs: " + varName);
+            return Double.NaN;
+        }
+
+        memo.tick = tick;
+        memo.methods = methods;
+        memo.resolving = true;
+        Double d;
+        try {
+            d = resolveData(varIndex, methods, cursor);
+        } catch (RuntimeException ex) {
+            memo.methods = null;    // resolved again if read again
+            memo.resolving = false;
+            throw ex;
+        }
+
+        // set again, as resolving may have read varName with other methods
+        memo.tick = tick;
+        memo.methods = methods;
+        memo.value = d;
+        memo.resolving = false;
+        return d;
+    }
+
+    private Double resolveData(int varIndex, Method[] methods, TimeIndex.Cursor cursor) {
+        createSpatialIndices(methods);
+
+        Double d;
+        while (true) {
+            long stamp = beginRead();
+            try {
+                d = readData(methods, varIndex, cursor);
+            } catch (RuntimeException ex) {
+                if (lock.validate(stamp))
+                    throw ex;
+                continue;   // torn read during a concurrent addData
+            }
+            if (lock.validate(stamp))
+                break;
+        }
+
+        if (d == MODEL_REQUIRED) {
+            // predictions do not depend on this store, make them outside the read
+            for (int i = 0; i < methods.length; i++) {
+                if (methods[i].getId() == Method.MODEL) {
+                    d = predict(methods[i].getArgs());
+                    break;
+                }
+            }
+        }
+
+        return d;
+    }
+
+    // createSpatialIndices creates the spatial indices for the location
+    // searches of methods, once the store is large enough to benefit
+    private void createSpatialIndices(Method[] methods) {
+        if (columns.size() < MIN_INDEXED_ROWS || methods.length == 0)
+            return;
+
+        // only the first method searches all the rows
+        int[] coords = methods[0].getCoords();
+        int mask;
+        switch (methods[0].getId()) {
+        case Method.CLOSEST:
+            mask = (coords.length == 1) ? ColumnStore.coordMask(coords) : -1;
+            break;
+        case Method.EUCLIDEAN:
+            mask = ColumnStore.coordMask(coords);
+            break;
+        case Method.GEODESIC:
+            mask = (Arrays.equals(coords, new int[] { Dimension.X, Dimension.Y }))
+                ? ColumnStore.GEODESIC : -1;
+            break;
+        default:
+            return;
+        }
+        if (mask < 0 || columns.hasSpatialIndex(mask))
+            return;
+
+        long stamp = lock.writeLock();
+        try {
+            columns.createSpatialIndex(mask);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        LOGGER.info("Created spatial index on " + Arrays.toString(methods[0].getArgs()));
+    }
+
+    // beginRead returns a stamp for an optimistic read of columns, which
+    // is validated by lock.validate once the read is done
+    private long beginRead() {
+        long stamp;
+        while ((stamp = lock.tryOptimisticRead()) == 0)
+            Thread.yield();     // a writer is modifying columns
+        return stamp;
+    }
+
+    private Double predict(String[] args) {
+        String model = args[0];
+        List<DataVector> result = getDatas(Arrays.copyOfRange(args,1,args.length));
+        List<DataVector> dv_tmp = pilots.util.model.Client.predict(model, result);
+        // currently supports only one number prediction
+        return dv_tmp.get(0).get(0);
+    }
+
+    // readData applies methods on columns. It may observe a concurrent
+    // addData and must not have side effects but on cursor, which is only a
+    // hint for the search; see getData.
+    private Double readData(Method[] methods, int varIndex, TimeIndex.Cursor cursor) {
+        int[] workRows = ALL_ROWS;
         Double d = null;
-        if (workData.size() == 1) {
-            stData = workData.get(0);
-            d = stData.getData(varIndex - 1); // -1: workaround due to an issue on parseVarNames 
+        if (columns.size() == 1) {
+            d = columns.getValue(0, varIndex - 1); // -1: workaround due to an issue on parseVarNames 
             return d;
         }
 
@@ -422,7 +673,7 @@ public class DataStore {
                     errorCondition = true;
                     break;
                 } 
-                workData = applyClosest(workData, args[0]);
+                workRows = applyClosest(workRows, methods[i].getCoords()[0], cursor);
                 break;
                 
             case Method.EUCLIDEAN:
@@ -432,8 +683,19 @@ public class DataStore {
                     errorCondition = true;
                     break;
                 }
-                workData = (args.length == 1) ? 
-                    applyClosest(workData, args[0]) : applyEuclidean(workData, args);
+                workRows = (args.length == 1) ? 
+                    applyClosest(workRows, methods[i].getCoords()[0], cursor)
+                    : applyEuclidean(workRows, methods[i].getCoords());
+                break;
+
+            case Method.GEODESIC:
+                // this applies to the latitude and the longitude
+                if (args.length != 2) {
+                    LOGGER.severe("Invalid number of arguments for geodesic method: " + args.length);
+                    errorCondition = true;
+                    break;
+                }
+                workRows = applyGeodesic(workRows, methods[i].getCoords());
                 break;
 
             case Method.INTERPOLATE:
@@ -444,47 +706,37 @@ public class DataStore {
                     errorCondition = true;
                     break;
                 }
-                d = applyInterpolation(workData, args, varIndex);
+                d = applyInterpolation(workRows, methods[i], varIndex, cursor);
                 if (d != null)
                     interpolated = true;
                 break;
                 
             case Method.MODEL:
-                String model = args[0];
-            	List<DataVector> result = getDatas(Arrays.copyOfRange(args,1,args.length));
+                // the prediction is made by getData
                 predicted = true;
-            	List<DataVector> dv_tmp = pilots.util.model.Client.predict(model, result);
-		// currently supports only one number prediction
-		d = dv_tmp.get(0).get(0);
+                d = MODEL_REQUIRED;
             default:
                 break;
             }
 
-            if (errorCondition || (workData == null) || interpolated || predicted) {
+            if (errorCondition || (workRows == null) || interpolated || predicted) {
                 break;
             }
 
-            if (workData.size() == 1) {
+            if (workRows.length == 1) {
                 // no need to check methods anymore
-                stData = workData.get(0);
-                d = stData.getData(varIndex - 1);  // -1: workaround due to an issue on parseVarNames 
+                d = columns.getValue(workRows[0], varIndex - 1);  // -1: workaround due to an issue on parseVarNames 
                 break;
             }
 
-            LOGGER.finest("workData.size()=" + workData.size());
+            LOGGER.finest("workRows.length=" + numRows(workRows));
         }
 
-        if (!interpolated && 1 < workData.size() && !predicted) {
+        if (!interpolated && workRows != null && 1 < numRows(workRows) && !predicted) {
             // tie case, give priority to the first one
-            stData = workData.get(0);
-            d = stData.getData(varIndex - 1);  // -1: workaround due to an issue on parseVarNames 
+            d = columns.getValue(row(workRows, 0), varIndex - 1);  // -1: workaround due to an issue on parseVarNames 
         }
 
-        // if (varName.equals("air_speed") && (d == 50.0)) {
-        //     LOGGER.severe("########## Unusual airspeed found!!");
-        //     System.exit(1);
-        // }
-        
         return d;
     }
 
@@ -501,68 +753,53 @@ public class DataStore {
         return varNames;
     }
 
-    private boolean hasIdenticalVarNames(String[] varNames) {
-        if (this.varNames.length != varNames.length) {
-            return false;
-        }
-
-        boolean flag = true;
-        for (int i = 0; i < varNames.length; i++) {
-            if (0 < varNames[i].length()) {
-                flag = false;
-                for (int j = 0; j < this.varNames.length; j++) {
-                    if (varNames[i].equals(this.varNames[j])) {
-                        flag = true;
-                        break;
-                    }
-                }
-                
-                if (flag == false) {
-                    break;
-                }
-            }
-        }
-
-        LOGGER.finest("Found identical varNames: " + flag);
+    public String[] getVarNames() {
+        return varNames;
+    }
 
-        return flag;
+    public int getCapacity() {
+        return columns.getCapacity();
     }
 
-    private boolean containsVarName(String varName) {
-        boolean flag = false;
+    // getVersion returns a number which changes whenever a sample is added
+    long getVersion() {
+        return version;
+    }
 
-        for (int i = 0; i < this.varNames.length; i++) {
-            if (this.varNames[i].equals(varName)) {
-                flag = true;
-                break;
+    public int addData(CharSequence str) {
+        long stamp = lock.writeLock();
+        try {
+            if (!parser.parse(str)) {
+                LOGGER.severe("parse failed: " + str);
+                return -1;
             }
+            return addParsedData();
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        
-        return flag;
-    }
-
-    public String[] getVarNames() {
-        return varNames;
     }
 
-    public synchronized int addData(String str) {
-        SpatioTempoData stData = new SpatioTempoData();
-
-        if (!stData.parse(str)) {
-            LOGGER.severe("parse failed: " + str);
-            return -1;
+    // addData for a sample decoded from a binary frame, see BinaryProtocol
+    public int addData(long time, double[] location, int dimension, double[] values, int numValues) {
+        long stamp = lock.writeLock();
+        try {
+            parser.set(time, location, dimension, values, numValues);
+            return addParsedData();
+        } finally {
+            lock.unlockWrite(stamp);
         }
+    }
 
-        stData.print();
-        
-        if (System.getProperty("timeSpan") == null &&
-             MAX_DATA_NUM <= data.size()) {
+    // addParsedData adds the sample held by parser, holding the write lock
+    private int addParsedData() {
+        if (context.getProperty("timeSpan") == null && columns.isFull()) {
             // remove the oldest data only if working in real-time 
-            data.remove(0);
+            columns.removeFirst();
         }
-        data.add(stData);
+        columns.add(parser);
+        version++;
 
-        return data.size();
+        return columns.size();
     }
  }
 
@@ -0,0 +1,134 @@
+package pilots.runtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.logging.Logger;
+
+
+// FileReplayer loads recorded data files straight into DataStore, instead
+// of having input producers send them to DataReceiver over sockets. A file
+// has the same format as the input producers read:
+//   #var1,var2,...     header, selects the DataStore
+//   <data>             one line per sample, either in the PILOTS format
+//                      (see SpatioTempoData) or CSV values only
+// As ColumnSelectableFileInputProducer does, CSV samples are stamped with
+// the current time. All the columns are loaded; blank lines are skipped.
+public class FileReplayer {
+    private static Logger LOGGER = Logger.getLogger(FileReplayer.class.getName());
+
+    private static int BUFFER_SIZE = 64 * 1024;
+    private static long MAX_MAPPED_SIZE = 1L << 30;
+
+    private static final int FORMAT_UNKNOWN = -1;
+    private static final int FORMAT_PILOTS = 0;
+    private static final int FORMAT_CSV = 1;
+
+    private boolean mmap;
+    private byte[] bytes = new byte[256];     // current line, raw bytes
+    private int numBytes;
+    private StringBuilder line = new StringBuilder();
+    private DateFormat dateFormat = null;     // for CSV samples
+
+    // per file state
+    private String filename;
+    private DataStore dataStore;
+    private int format;
+    private int numSamples;
+
+    public FileReplayer(boolean mmap) {
+        this.mmap = mmap;
+    }
+
+    // load loads filename and returns the number of samples stored
+    public int load(String filename) throws IOException {
+        this.filename = filename;
+        dataStore = null;
+        format = FORMAT_UNKNOWN;
+        numSamples = 0;
+        numBytes = 0;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (mmap) {
+                long size = channel.size();
+                for (long pos = 0; pos < size; pos += MAX_MAPPED_SIZE) {
+                    long length = Math.min(MAX_MAPPED_SIZE, size - pos);
+                    read(channel.map(FileChannel.MapMode.READ_ONLY, pos, length));
+                }
+            }
+            else {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                while (0 <= channel.read(buffer)) {
+                    buffer.flip();
+                    read(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        if (0 < numBytes)
+            handleLine();   // the last line without '\n'
+
+        LOGGER.info("Loaded " + numSamples + " samples from " + filename);
+        return numSamples;
+    }
+
+    private void read(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                handleLine();
+            }
+            else {
+                if (numBytes == bytes.length)
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                bytes[numBytes++] = b;
+            }
+        }
+    }
+
+    private void handleLine() {
+        DataReceiver.decodeLine(bytes, numBytes, line);
+        numBytes = 0;
+
+        if (line.length() == 0)
+            return;
+
+        if (line.charAt(0) == '#') {
+            dataStore = DataStore.getInstance(line.toString());
+            return;
+        }
+
+        if (dataStore == null) {
+            LOGGER.warning("No data store for " + filename + ", skipped: " + line);
+            return;
+        }
+
+        if (format == FORMAT_UNKNOWN)
+            format = isPilotsFormat(line) ? FORMAT_PILOTS : FORMAT_CSV;
+
+        if (format == FORMAT_CSV) {
+            if (dateFormat == null)
+                dateFormat = new SimpleDateFormat(SpatioTempoData.datePattern);
+            line.insert(0, ":" + dateFormat.format(new Date()) + ":");
+        }
+
+        if (0 <= dataStore.addData(line))
+            numSamples++;
+    }
+
+    private boolean isPilotsFormat(CharSequence str) {
+        // <locations>:<times>:<values>
+        int numColons = 0;
+        for (int i = 0; i < str.length() && numColons < 2; i++) {
+            if (str.charAt(i) == ':')
+                numColons++;
+        }
+        return numColons == 2;
+    }
+}
@@ -0,0 +1,61 @@
+package pilots.runtime;
+
+
+// InputBinding is an input variable with its methods, created once by the
+// generated program. The store and the column of the variable are looked up
+// on the first read after the header of the variable has arrived, so that
+// reading the variable on every tick does no allocation or string work.
+// The binding also keeps a cursor on the time columns of the store; as time
+// only moves forward, finding the closest sample to the current time walks
+// the rows of the store once over a whole simulation.
+public class InputBinding {
+    private RuntimeContext context;
+    private String varName;
+    private Method[] methods;
+    private volatile DataStore store = null;
+    private int varIndex = -1;
+    private TimeIndex.Cursor cursor = new TimeIndex.Cursor();
+
+    public InputBinding(String varName, Method... methods) {
+        this.context = RuntimeContext.current();
+        this.varName = varName;
+        this.methods = methods;
+        for (Method method : methods)
+            method.getCoords();     // parse args now rather than on a tick
+    }
+
+    public String getVarName() {
+        return varName;
+    }
+
+    public Method[] getMethods() {
+        return methods;
+    }
+
+    public int getVarIndex() {
+        return varIndex;
+    }
+
+    public TimeIndex.Cursor getCursor() {
+        return cursor;
+    }
+
+    // getStore returns the store of the variable, or null if no producer
+    // has sent the variable yet
+    public DataStore getStore() {
+        DataStore store = this.store;
+        if (store == null) {
+            store = DataStore.findStore(context, varName);
+            if (store != null) {
+                varIndex = store.getVarIndex(varName);
+                store.registerMethods(varName, methods);
+                this.store = store;
+            }
+        }
+        return store;
+    }
+
+    public String toString() {
+        return varName;
+    }
+}
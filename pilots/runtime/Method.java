@@ -5,17 +5,22 @@ public class Method {
     public static final int EUCLIDEAN = 1;
     public static final int INTERPOLATE = 2;
     public static final int MODEL = 3;
+    public static final int GEODESIC = 4;
     public static final String[] methodNames = {"Method.CLOSEST",
                                                 "Method.EUCLIDEAN",
                                                 "Method.INTERPOLATE",
-                                                "Method.MODEL"};
+                                                "Method.MODEL",
+                                                "Method.GEODESIC"};
 
     private int id;
     private String args[];
+    // args parsed on first use so that DataStore does no string work per call
+    private volatile int[] coords = null;
+    private int numInterp = -1;
 
     
     public Method(int id) {
-        if ((id < CLOSEST) || (MODEL < id)) {
+        if ((id < CLOSEST) || (GEODESIC < id)) {
             System.err.println("Invalid id: " + id);
             return;
         }
@@ -39,6 +44,7 @@ public class Method {
 
     public void setId(int id) {
         this.id = id;
+        this.coords = null;
     }
 
     public String[] getArgs() {
@@ -47,6 +53,53 @@ public class Method {
 
     public void setArgs(String[] args) {
         this.args = args;
+        this.coords = null;
+    }
+
+    // getCoords returns the coordinates (see Dimension) given as args; for
+    // INTERPOLATE the last arg, the number of points, is excluded
+    public int[] getCoords() {
+        int[] coords = this.coords;
+        if (coords == null) {
+            coords = compile();
+            this.coords = coords;
+        }
+        return coords;
+    }
+
+    // getNumInterp returns the number of points to interpolate, or -1 if
+    // the last arg of INTERPOLATE is not a number
+    public int getNumInterp() {
+        getCoords();
+        return numInterp;
+    }
+
+    private int[] compile() {
+        int numCoords;
+        switch (id) {
+        case CLOSEST:
+        case EUCLIDEAN:
+        case GEODESIC:
+            numCoords = args.length;
+            break;
+        case INTERPOLATE:
+            numCoords = Math.max(args.length - 1, 0);
+            try {
+                numInterp = Integer.parseInt(args[args.length - 1]);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                numInterp = -1;
+            }
+            break;
+        default:
+            numCoords = 0;
+            break;
+        }
+
+        int[] coords = new int[numCoords];
+        for (int i = 0; i < numCoords; i++)
+            coords[i] = Dimension.parseCoord(args[i]);
+        return coords;
     }
 
     public int searchArg(String arg) {
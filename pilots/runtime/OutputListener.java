@@ -0,0 +1,8 @@
+package pilots.runtime;
+
+
+// OutputListener receives the lines written by a PILOTS program to its
+// outputs: the header line by openOutput and a data line by sendData.
+public interface OutputListener {
+    public void output(int connId, String line);
+}
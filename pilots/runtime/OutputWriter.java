@@ -0,0 +1,476 @@
+package pilots.runtime;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+// OutputWriter writes the lines and samples of one output connection from a
+// bounded queue, so that a slow consumer does not stall the evaluation. The
+// queue is drained by a writer thread, borrowed from a pool shared by all
+// the connections only while there is something to write, which coalesces
+// the queued outputs into large writes and flushes once per batch.
+//
+// When the queue is full, the overflow policy decides what happens:
+//   DROP_OLDEST    the oldest queued sample is dropped
+//   BLOCK          the evaluation waits until there is room
+//   DISCONNECT     the connection is closed, and made again after a backoff
+//
+// The connection is also made by the writer thread. While it is down, e.g.,
+// the consumer is restarting, it is retried with exponential backoff and the
+// samples stay queued, dropping the oldest ones whatever the policy. A
+// connection closed by the DISCONNECT policy is also made again after the
+// backoff. The backoff is reset only when a connection has stayed up for
+// STABLE_TIME, not on connection, so that a slow consumer is not connected
+// again at once on every full queue. The protocol lines, e.g., the header,
+// and the samples queued while disconnected are sent on every connection.
+public class OutputWriter {
+    private static Logger LOGGER = Logger.getLogger(OutputWriter.class.getName());
+
+    public static final int DROP_OLDEST = 0;
+    public static final int BLOCK = 1;
+    public static final int DISCONNECT = 2;
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long KEEP_ALIVE_TIME = 1000;   // msec
+    private static final long CLOSE_TIMEOUT = 5000;     // msec
+    private static final int CONNECT_TIMEOUT = 5000;    // msec
+    private static final long MIN_BACKOFF = 100;        // msec
+    private static final long MAX_BACKOFF = 30000;      // msec
+    private static final long STABLE_TIME = 30000;      // msec
+    private static ExecutorService writerPool = null;
+    private static ScheduledExecutorService retryTimer = null;
+
+    // Output is a queued protocol line or sample
+    private static class Output {
+        boolean sample;
+        String line;        // for text outputs
+        long time;          // for binary outputs
+        double[] values;
+
+        Output(boolean sample, String line, long time, double[] values) {
+            this.sample = sample;
+            this.line = line;
+            this.time = time;
+            this.values = values;
+        }
+    }
+
+    private String name;
+    private String host;
+    private int port;
+    private boolean binary;
+    private int capacity;
+    private int policy;
+
+    // sock is null while disconnected; out and writer are used only by the
+    // writer thread
+    private Socket sock = null;
+    private DataOutputStream out = null;
+    private PrintWriter writer = null;  // writes to out
+
+    private List<String> lines = new ArrayList<>();     // protocol lines written so far
+    private ArrayDeque<Output> queue = new ArrayDeque<>();
+    private boolean draining = false;   // a writer thread is draining, or will retry
+    private boolean closed = false;     // no more outputs are accepted
+    private long backoff = MIN_BACKOFF;
+    private long connectTime = 0;       // msec, of the last connection
+    private boolean backingOff = false; // disconnected by the policy, connect after the backoff
+    private ScheduledFuture<?> retry = null;
+
+    // metrics
+    private long numQueued = 0;
+    private long numWritten = 0;
+    private long numDropped = 0;
+    private long numBatches = 0;
+    private long numConnects = 0;
+    private int maxQueueSize = 0;
+
+    public OutputWriter(String name, String host, int port, boolean binary, int capacity, int policy) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    private static synchronized ExecutorService getWriterPool() {
+        if (writerPool == null) {
+            // idle writer threads exit soon, so that they neither pile up
+            // nor keep the JVM alive
+            final AtomicInteger numThreads = new AtomicInteger(0);
+            writerPool = new ThreadPoolExecutor(
+                0, Integer.MAX_VALUE, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "OutputWriter-" + numThreads.getAndIncrement());
+                    }
+                });
+        }
+        return writerPool;
+    }
+
+    private static synchronized ScheduledExecutorService getRetryTimer() {
+        if (retryTimer == null) {
+            retryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "OutputWriter-retry");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return retryTimer;
+    }
+
+    // connect starts connecting in the background
+    public synchronized void connect() {
+        startDraining();
+    }
+
+    // writeLine queues a protocol line, e.g., the header, and returns false
+    // if the output is closed
+    public synchronized boolean writeLine(String line) {
+        if (closed)
+            return false;
+
+        lines.add(line);
+        if (sock != null) {
+            // otherwise sent on connection
+            queue.add(new Output(false, line, 0, null));
+            startDraining();
+        }
+        return true;
+    }
+
+    // writeData queues a sample, which is written as line to text outputs
+    // and as time and values to binary outputs, and returns false if the
+    // output is closed
+    public boolean writeData(long time, double[] values, String line) {
+        if (binary)
+            return offer(new Output(true, null, time, values.clone()));
+        else
+            return offer(new Output(true, line, 0, null));
+    }
+
+    private synchronized boolean offer(Output output) {
+        if (closed)
+            return false;
+
+        while (capacity <= queue.size()) {
+            if (sock == null) {
+                // never block nor give up on a consumer being restarted
+                dropOldestSample();
+            }
+            else if (policy == BLOCK) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (closed)
+                    return false;
+            }
+            else if (policy == DISCONNECT) {
+                LOGGER.warning(name + ": queue full, disconnecting");
+                numDropped += queue.size();
+                queue.clear();
+                disconnect();
+                backingOff = true;
+            }
+            else {
+                dropOldestSample();
+            }
+        }
+
+        queue.add(output);
+        numQueued++;
+        maxQueueSize = Math.max(maxQueueSize, queue.size());
+        startDraining();
+        return true;
+    }
+
+    private void dropOldestSample() {
+        Iterator<Output> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().sample) {
+                it.remove();
+                if (numDropped++ == 0)
+                    LOGGER.warning(name + ": queue full, dropping the oldest samples");
+                return;
+            }
+        }
+    }
+
+    private void startDraining() {
+        if (!draining) {
+            draining = true;
+            getWriterPool().execute(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                });
+        }
+    }
+
+    private void drain() {
+        ArrayDeque<Output> batch = new ArrayDeque<>();
+        while (true) {
+            boolean connected;
+            synchronized (this) {
+                if (closed && (sock == null || queue.isEmpty())) {
+                    disconnect();
+                    draining = false;
+                    return;
+                }
+                connected = (sock != null);
+                if (!connected && backingOff) {
+                    // draining stays true until the retry
+                    backingOff = false;
+                    LOGGER.warning(name + ": disconnected, connecting again in " + backoff + " msec");
+                    scheduleRetry();
+                    return;
+                }
+            }
+
+            if (!connected && !open()) {
+                synchronized (this) {
+                    if (closed) {
+                        draining = false;
+                        notifyAll();
+                        return;
+                    }
+                    // draining stays true until the retry
+                    LOGGER.warning(name + ": unable to connect, retrying in " + backoff + " msec");
+                    scheduleRetry();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    draining = false;
+                    notifyAll();
+                    return;
+                }
+                // take everything queued so far
+                ArrayDeque<Output> tmp = queue;
+                queue = batch;
+                batch = tmp;
+                notifyAll();
+            }
+
+            try {
+                for (Output output : batch)
+                    write(output);
+                flush();
+                synchronized (this) {
+                    numWritten += batch.size();
+                    numBatches++;
+                }
+            } catch (IOException ex) {
+                LOGGER.warning(name + ": " + ex);
+                synchronized (this) {
+                    numDropped += batch.size();
+                    disconnect();
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    // scheduleRetry drains again after the backoff, which is doubled
+    private void scheduleRetry() {
+        retry = getRetryTimer().schedule(new Runnable() {
+                public void run() {
+                    getWriterPool().execute(new Runnable() {
+                            public void run() {
+                                drain();
+                            }
+                        });
+                }
+            }, backoff, TimeUnit.MILLISECONDS);
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+    }
+
+    // open connects and sends the protocol lines, returning true on success
+    private boolean open() {
+        Socket newSock = new Socket();
+        ArrayDeque<Output> queued = null;
+        try {
+            newSock.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            out = new DataOutputStream(new BufferedOutputStream(newSock.getOutputStream(), BUFFER_SIZE));
+            writer = new PrintWriter(out);
+            List<String> sentLines;
+            synchronized (this) {
+                sock = newSock;
+                // lines written from now on are queued
+                sentLines = new ArrayList<>(lines);
+                // the samples queued while disconnected are sent with them,
+                // so that the queue they filled does not count as full
+                // against the new connection
+                queued = queue;
+                queue = new ArrayDeque<>();
+                connectTime = System.currentTimeMillis();
+                numConnects++;
+                notifyAll();
+            }
+
+            if (binary)
+                BinaryProtocol.writePreamble(out);
+            for (String line : sentLines)
+                write(new Output(false, line, 0, null));
+            for (Output output : queued)
+                write(output);
+            flush();
+            synchronized (this) {
+                numWritten += queued.size();
+                numBatches++;
+            }
+            LOGGER.info(name + ": connected");
+            return true;
+        } catch (IOException ex) {
+            LOGGER.fine(name + ": " + ex);
+            synchronized (this) {
+                if (queued != null)
+                    numDropped += queued.size();
+                if (sock == newSock)
+                    disconnect();
+            }
+            try {
+                newSock.close();
+            } catch (IOException ex2) {
+                LOGGER.warning(ex2.toString());
+            }
+            return false;
+        }
+    }
+
+    private void write(Output output) throws IOException {
+        if (!binary)
+            writer.println(output.line);
+        else if (output.sample)
+            BinaryProtocol.writeData(out, output.time, null, output.values);
+        else
+            BinaryProtocol.writeLine(out, output.line);
+    }
+
+    private void flush() throws IOException {
+        if (binary)
+            out.flush();
+        else if (writer.checkError())    // also flushes
+            throw new IOException("Write failed");
+    }
+
+    // disconnect closes the socket, holding the lock. A write blocked on
+    // the writer thread fails, and the writer thread connects again.
+    private void disconnect() {
+        if (sock == null)
+            return;
+        try {
+            sock.close();
+        } catch (IOException ex) {
+            LOGGER.warning(ex.toString());
+        }
+        sock = null;
+        if (STABLE_TIME <= System.currentTimeMillis() - connectTime)
+            backoff = MIN_BACKOFF;
+
+        // protocol lines not written yet are sent on connection
+        Iterator<Output> it = queue.iterator();
+        while (it.hasNext()) {
+            if (!it.next().sample)
+                it.remove();
+        }
+        notifyAll();
+    }
+
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    public synchronized boolean isConnected() {
+        return sock != null;
+    }
+
+    // close writes what has been queued if connected, waiting for up to
+    // CLOSE_TIMEOUT msec, and closes the connection
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (retry != null)
+                retry.cancel(false);
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+            long remaining;
+            while (draining && sock != null
+                   && 0 < (remaining = deadline - System.currentTimeMillis())) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (!queue.isEmpty()) {
+                LOGGER.warning(name + ": closed with " + queue.size() + " outputs not written");
+                numDropped += queue.size();
+                queue.clear();
+            }
+            disconnect();
+        }
+        LOGGER.info(toString());
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    public synchronized int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    public synchronized long getNumQueued() {
+        return numQueued;
+    }
+
+    public synchronized long getNumWritten() {
+        return numWritten;
+    }
+
+    public synchronized long getNumDropped() {
+        return numDropped;
+    }
+
+    public synchronized long getNumBatches() {
+        return numBatches;
+    }
+
+    public synchronized long getNumConnects() {
+        return numConnects;
+    }
+
+    public synchronized String toString() {
+        return name + ": " + numWritten + " written in " + numBatches + " batches, "
+            + numDropped + " dropped, " + queue.size() + " queued (max " + maxQueueSize + "), "
+            + numConnects + " connects";
+    }
+}
@@ -0,0 +1,158 @@
+package pilots.runtime;
+
+import java.util.ArrayDeque;
+import java.util.logging.Logger;
+
+
+// Pacer releases the outputs of a simulation at a multiple of real time
+// (--timespeed xN), so that the evaluation itself runs at full speed. The
+// evaluation submits each output with its simulated time, up to capacity
+// outputs ahead of playback, and a pacing thread releases them in order:
+// an output at simulated time t is released (t - t0) / speed msec after the
+// first one at t0, whichever connection it goes to. Since the release times
+// are computed from t0 rather than from the previous output, delays do not
+// accumulate over a long playback.
+public class Pacer {
+    private static Logger LOGGER = Logger.getLogger(Pacer.class.getName());
+
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private static final long KEEP_ALIVE_TIME = 1000;   // msec
+
+    // Entry is an output waiting for its release time
+    private static class Entry {
+        long time;          // simulated msec
+        Runnable output;
+
+        Entry(long time, Runnable output) {
+            this.time = time;
+            this.output = output;
+        }
+    }
+
+    private String name;
+    private double speed;
+    private int capacity;
+    private ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private boolean running = false;    // the pacing thread is running
+    private boolean closed = false;
+
+    private long baseTime = 0;          // simulated msec of the first output
+    private long baseNanoTime = 0;      // System.nanoTime() when it was released
+    private boolean started = false;
+
+    public Pacer(String name, double speed) {
+        this(name, speed, DEFAULT_CAPACITY);
+    }
+
+    public Pacer(String name, double speed, int capacity) {
+        this.name = name;
+        this.speed = speed;
+        this.capacity = capacity;
+    }
+
+    // submit queues output to be released at simulated time, waiting while
+    // capacity outputs are queued
+    public synchronized void submit(long time, Runnable output) {
+        if (closed)
+            return;
+
+        while (capacity <= queue.size()) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        queue.add(new Entry(time, output));
+        notifyAll();
+        if (!running) {
+            running = true;
+            new Thread(name) {
+                public void run() {
+                    release();
+                }
+            }.start();
+        }
+    }
+
+    private void release() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                try {
+                    entry = waitForRelease();
+                } catch (InterruptedException ex) {
+                    LOGGER.severe(ex.toString());
+                    entry = null;
+                }
+                if (entry == null) {
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+            }
+
+            try {
+                entry.output.run();
+            } catch (RuntimeException ex) {
+                LOGGER.severe(name + ": " + ex);
+            }
+
+            // dequeued once released, so that close waits for it
+            synchronized (this) {
+                queue.poll();
+                notifyAll();
+            }
+        }
+    }
+
+    // waitForRelease waits until the head of the queue is due and returns
+    // it, or returns null if the queue stays empty, holding the lock
+    private Entry waitForRelease() throws InterruptedException {
+        while (true) {
+            Entry entry = queue.peek();
+            if (entry == null) {
+                // the thread exits when idle, not to keep the JVM alive
+                if (closed)
+                    return null;
+                wait(KEEP_ALIVE_TIME);
+                if (queue.isEmpty())
+                    return null;
+                continue;
+            }
+
+            if (!started) {
+                baseTime = entry.time;
+                baseNanoTime = System.nanoTime();
+                started = true;
+            }
+            long due = baseNanoTime + (long)((entry.time - baseTime) * 1000000 / speed);
+            long delay = due - System.nanoTime();
+            if (delay <= 0)
+                return entry;
+            wait(delay / 1000000, (int)(delay % 1000000));
+        }
+    }
+
+    // close releases the queued outputs at their times and returns when all
+    // of them are released
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+        while (running && !queue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+}
@@ -2,12 +2,18 @@ package pilots.runtime;
 
 import java.net.*;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
-import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
@@ -27,6 +33,10 @@ public class PilotsRuntime {
     private static final int DEFAULT_OMEGA = 1;
     private static final double DEFAULT_TAU = 0.8;
 
+    // periodic tasks of all the programs in this JVM run on a small pool
+    // of shared threads instead of a Timer thread per program
+    private static ScheduledExecutorService scheduler = null;
+
     private ConnectionManager connectionManager;
     private int omega;
     private double tau;
@@ -39,10 +49,14 @@ public class PilotsRuntime {
     // newly added for animation effect for the simulation mode
     private boolean animation;
     private double timeSpeed;
-    private Calendar prevDate;
+    private Pacer pacer;
 
     private String namespace;
 
+    private RuntimeContext context;
+    private OutputListener outputListener = null;
+    private List<ScheduledFuture<?>> tasks = new CopyOnWriteArrayList<>();
+
     public PilotsRuntime(String[] args) {
         ArgumentParser parser = ArgumentParsers.newFor("PilotsRuntime").build()
             .defaultHelp(true)
@@ -74,6 +88,23 @@ public class PilotsRuntime {
         parser.addArgument("-n", "--namespace")
             .setDefault("none")
             .help("Namespace for outputs");
+        parser.addArgument("-f", "--replay")
+            .nargs("*")
+            .help("List of recorded data files to load instead of receiving inputs");
+        parser.addArgument("--mmap")
+            .action(Arguments.storeTrue())
+            .help("Memory-map the replayed data files");
+        parser.addArgument("--binary")
+            .action(Arguments.storeTrue())
+            .help("Send outputs in binary frames instead of text lines");
+        parser.addArgument("--outputqueue")
+            .type(Integer.class)
+            .setDefault(OutputWriter.DEFAULT_CAPACITY)
+            .help("Capacity of the queue of each output");
+        parser.addArgument("--overflow")
+            .choices("drop", "block", "disconnect")
+            .setDefault("drop")
+            .help("What to do when the queue of an output is full: drop the oldest samples, block, or disconnect");
 
         try {
             opts = parser.parseArgs(args);
@@ -84,22 +115,27 @@ public class PilotsRuntime {
 
         System.out.println(opts);
 
+        context = RuntimeContext.current();
+        context.beginTick();    // the first tick, ended by progressTime in --sim
         connectionManager = new ConnectionManager();
         omega = opts.get("omega");
         tau = opts.get("tau");
 
         dateFormat = new SimpleDateFormat(SpatioTempoData.datePattern);
+        // as if created before any input changed the default time zone,
+        // which may have happened for another program in this JVM
+        dateFormat.setTimeZone(SpatioTempoData.getSystemTimeZone());
 
         if (opts.get("timerange") != null)
-            System.setProperty("timeRange", opts.get("timerange"));
+            context.setProperty("timeRange", opts.get("timerange"));
 
         if (opts.get("currloctime") != null)
-            System.setProperty("currLocTime", opts.get("currloctime"));
-        currLocTime = ServiceFactory.getCurrentLocationTime();
+            context.setProperty("currLocTime", opts.get("currloctime"));
+        currLocTime = context.getCurrentLocationTime();
 
         animation = false;
         timeSpeed = 1.0;
-        prevDate = null;
+        pacer = null;
 
         String timeSpeed = opts.get("timespeed");
         if ((opts.get("timerange") != null) && (timeSpeed != null)) {
@@ -109,14 +145,21 @@ public class PilotsRuntime {
             else {
                 animation = true;
                 this.timeSpeed = Double.parseDouble(timeSpeed.substring(1));
+                pacer = new Pacer("Pacer-" + context.getName(), this.timeSpeed);
             }
         }
 
+        String overflow = opts.get("overflow");
+        connectionManager.setQueue(opts.<Integer> get("outputqueue"),
+                                   overflow.equals("block") ? OutputWriter.BLOCK
+                                   : overflow.equals("disconnect") ? OutputWriter.DISCONNECT
+                                   : OutputWriter.DROP_OLDEST);
+
         // connId is defined by the order in outputs list
         int  connId = 0;
         if (opts.get("outputs") != null) {
             for (String hostport : opts.<String> getList("outputs"))
-                connectionManager.create(connId++, hostport);
+                connectionManager.create(connId++, hostport, opts.getBoolean("binary"));
         }
 
         if (opts.get("namespace") == null || opts.get("namespace").equals("none"))
@@ -128,15 +171,109 @@ public class PilotsRuntime {
     }
 
     protected void startServer() {
+        if (isReplay()) {
+            // all the inputs are available once the files are loaded
+            FileReplayer replayer = new FileReplayer(opts.getBoolean("mmap"));
+            for (String filename : opts.<String> getList("replay")) {
+                try {
+                    replayer.load(filename);
+                } catch (IOException ex) {
+                    LOGGER.severe("Unable to replay " + filename + ": " + ex);
+                }
+            }
+            return;
+        }
         DataReceiver.startServer(opts.get("inputport"));
     }
 
+    // isReplay returns true if inputs are loaded from files by startServer
+    // rather than received from input producers
+    protected boolean isReplay() {
+        List<String> files = opts.getList("replay");
+        return files != null && !files.isEmpty();
+    }
+
     protected void stopServer() {
-        connectionManager.closeAll();
+        cancelTasks();
+        closeOutputs();
         DataReceiver.stopServer();
     }
 
+    // getScheduler returns the scheduler shared by all the programs, a pool
+    // of platform threads sized to the CPU count since the runtime keeps to
+    // Java 8, which has no virtual threads
+    public static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            final AtomicInteger numThreads = new AtomicInteger(0);
+            int poolSize = Math.max(1, Runtime.getRuntime().availableProcessors());
+            scheduler = Executors.newScheduledThreadPool(poolSize, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "PilotsRuntime-scheduler-" + numThreads.getAndIncrement());
+                    }
+                });
+        }
+        return scheduler;
+    }
+
+    // scheduleAtFixedRate runs task every period msec on the shared
+    // scheduler in the context of this program, each run being a tick of
+    // the context. As with Timer, runs of the same task never overlap.
+    protected void scheduleAtFixedRate(final Runnable task, long period) {
+        final RuntimeContext context = this.context;
+        tasks.add(getScheduler().scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    RuntimeContext prev = RuntimeContext.setCurrent(context);
+                    try {
+                        context.beginTick();
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        // the task is not run any more, as a TimerTask would
+                        LOGGER.severe("Task of " + context + " stopped: " + ex);
+                        throw ex;
+                    } finally {
+                        RuntimeContext.setCurrent(prev);
+                    }
+                }
+            }, 0, period, TimeUnit.MILLISECONDS));
+    }
+
+    // cancelTasks stops the periodic tasks of this program
+    protected void cancelTasks() {
+        for (ScheduledFuture<?> task : tasks)
+            task.cancel(false);
+        tasks.clear();
+    }
+
+    protected void closeOutputs() {
+        if (pacer != null)
+            pacer.close();
+        connectionManager.closeAll();
+    }
+
+    // produceOutputs runs the program, overridden by generated programs
+    public void produceOutputs() {
+    }
+
+    public RuntimeContext getContext() {
+        return context;
+    }
+
+    // setOutputListener sets a listener receiving every line written to the
+    // outputs, whether the output connections are established or not
+    public void setOutputListener(OutputListener outputListener) {
+        this.outputListener = outputListener;
+    }
+
     protected void openOutput(int connId, String... vars) {
+        String header = "#";
+        for (int i = 0; i < vars.length; i++) {
+            header += namespace + vars[i];
+            if (i < vars.length - 1)
+                header += ",";
+        }
+        if (outputListener != null)
+            outputListener.output(connId, header);
+
         if (!connectionManager.isCreated(connId)) {
             LOGGER.warning("Instance not created for connId: " + connId);
             return;
@@ -146,16 +283,8 @@ public class PilotsRuntime {
             return;
         }
         
-        PrintWriter writer = connectionManager.open(connId);
-
-        String header = "#";
-        for (int i = 0; i < vars.length; i++) {
-            header += namespace + vars[i];
-            if (i < vars.length - 1)
-                header += ",";
-        }
-        writer.println(header);
-        writer.flush();
+        if (connectionManager.open(connId))
+            connectionManager.writeLine(connId, header);
     }
 
     protected void closeOutput(int connId) {
@@ -164,44 +293,56 @@ public class PilotsRuntime {
     }
 
     protected void sendData(int connId, double... values) {
-        if (!connectionManager.isConnected(connId)) {
+        boolean connected = connectionManager.isConnected(connId);
+        if (!connected && outputListener == null) {
             LOGGER.finer("Connection not established for connId: " + connId);
             return;
         }
         
         Date date = currLocTime.getTime();
-        
-        if (animation && (prevDate != null)) {
-            long currTime = date.getTime();
-            long prevTime = prevDate.getTime().getTime();
-            long waitTime = (long)((currTime - prevTime) / timeSpeed);
-            LOGGER.finer("sendData, curr=" + (currTime - prevTime) + ", " + waitTime);
-            try {
-                Thread.sleep(waitTime);
-            } catch (InterruptedException ex) {
-                LOGGER.severe(ex.toString());
+
+        // binary outputs skip formatting unless a listener needs the line
+        boolean binary = connected && connectionManager.isBinary(connId);
+        String line = null;
+        if (outputListener != null || (connected && !binary)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(':').append(dateFormat.format(date)).append(':');
+            for (int i = 0; i < values.length; i++) {
+                if (0 < i)
+                    sb.append(',');
+                sb.append(values[i]);
             }
+            line = sb.toString();
         }
 
-        // write the value on the socket
-        PrintWriter writer = connectionManager.get(connId);
-        writer.print(":" + dateFormat.format(date) + ":");
-        for (int i = 0; i < values.length; i++) {
-            if (i == values.length - 1)
-                writer.println(values[i]);
-            else
-                writer.print(values[i] + ",");
+        if (animation) {
+            // released by the pacer at the playback time of date, while the
+            // evaluation goes on
+            final long time = date.getTime();
+            final String pacedLine = line;
+            pacer.submit(time, new Runnable() {
+                    public void run() {
+                        writeOutput(connId, time, values, pacedLine, connected);
+                    }
+                });
+        }
+        else {
+            writeOutput(connId, date.getTime(), values, line, connected);
         }
-        writer.flush();
+    }
 
-        if (prevDate == null)
-            prevDate = Calendar.getInstance();
-        prevDate.setTime(date);
+    private void writeOutput(int connId, long time, double[] values, String line, boolean connected) {
+        if (outputListener != null)
+            outputListener.output(connId, line);
+
+        // queue the value for the socket
+        if (connected)
+            connectionManager.writeData(connId, time, values, line);
     }
 
     // addData adds a spatioTempoData into datastore
     protected void addData(String var, String value) {
-        DataStore store = DataStore.findStore(var);
+        DataStore store = DataStore.findStore(context, var);
         if (store != null) {
             if (store.addData(value) < 0) {
                 LOGGER.warning("Unable to parse the input");
@@ -212,7 +353,7 @@ public class PilotsRuntime {
     }
 
     protected double getData(String var, Method... methods) {
-        DataStore store = DataStore.findStore(var);
+        DataStore store = DataStore.findStore(context, var);
         double d = 0;
 
         if (store != null) {
@@ -220,9 +361,7 @@ public class PilotsRuntime {
                 LOGGER.finest("methods[" + i + "]=" + methods[i]);
             LOGGER.finest("store=" + store + ", var=" + var + ", methods=" + methods);
             try {
-                synchronized (this) {
-                    d = store.getData(var, methods);
-                }
+                d = store.getData(var, methods);
             } catch (NullPointerException ex) {
                 LOGGER.warning("Caught NullPointerException: store=" + store);
             }
@@ -233,13 +372,34 @@ public class PilotsRuntime {
 
         return d;
     }
+
+    // getData for an input binding created by the generated program
+    protected double getData(InputBinding binding) {
+        DataStore store = binding.getStore();
+        double d = 0;
+
+        if (store != null) {
+            try {
+                d = store.getData(binding);
+            } catch (NullPointerException ex) {
+                LOGGER.warning("Caught NullPointerException: store=" + store);
+            }
+        }
+        else {
+            LOGGER.finer("No matching variable stored for \"" + binding + "\"");
+        }
+
+        return d;
+    }
     
     protected boolean isEndTime() {
         return currLocTime.isEndTime();
     }
 
+    // progressTime moves the simulated time to the next tick
     protected void progressTime(int timeOffset) {
         currLocTime.progressTime(timeOffset);
+        context.beginTick();
     }
 
     protected Date getTime() {
@@ -0,0 +1,103 @@
+package pilots.runtime;
+
+
+// RingBuffer lays out fixed-capacity circular columns: it maps element i
+// in arrival order to its position in columns of getCapacity() elements,
+// which the owner keeps as primitive arrays, e.g., ColumnStore. Element 0
+// is the oldest one and element size() - 1 the newest one. Appending and
+// evicting the oldest element are both O(1).
+//
+// Elements are also numbered absolutely, from the first one ever added, so
+// that a number stays valid over removeFirst().
+public class RingBuffer {
+    private int capacity;
+    private int head;          // position of the oldest element
+    private int size;          // current # of elements
+    private long numRemoved;   // # of elements removed so far, i.e., the number of element 0
+
+    public RingBuffer(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = capacity;
+        this.head = 0;
+        this.size = 0;
+        this.numRemoved = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public long getNumRemoved() {
+        return numRemoved;
+    }
+
+    // position returns the position of element i in the columns
+    public int position(int i) {
+        int pos = head + i;
+        return (pos < capacity) ? pos : pos - capacity;
+    }
+
+    // add appends an element to the tail and returns its position, which
+    // the owner fills. When the buffer is full, the owner should call
+    // removeFirst() first for a bounded buffer, or grow the columns.
+    public int add() {
+        if (isFull())
+            throw new IllegalStateException("RingBuffer full: " + capacity);
+        return position(size++);
+    }
+
+    public void removeFirst() {
+        if (size == 0)
+            return;
+        head = position(1);
+        size--;
+        numRemoved++;
+    }
+
+    public void clear() {
+        numRemoved += size;
+        head = 0;
+        size = 0;
+    }
+
+    // The columns are grown by unwrapping each of them into a new array of
+    // the new capacity, while the positions are still those of the old
+    // columns, and then by calling grow(capacity).
+
+    public void grow(int capacity) {
+        if (capacity < size)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = capacity;
+        this.head = 0;
+    }
+
+    public double[] unwrap(double[] column, int capacity) {
+        double[] newColumn = new double[capacity];
+        for (int i = 0; i < size; i++)
+            newColumn[i] = column[position(i)];
+        return newColumn;
+    }
+
+    public long[] unwrap(long[] column, int capacity) {
+        long[] newColumn = new long[capacity];
+        for (int i = 0; i < size; i++)
+            newColumn[i] = column[position(i)];
+        return newColumn;
+    }
+
+    public boolean[] unwrap(boolean[] column, int capacity) {
+        boolean[] newColumn = new boolean[capacity];
+        for (int i = 0; i < size; i++)
+            newColumn[i] = column[position(i)];
+        return newColumn;
+    }
+}
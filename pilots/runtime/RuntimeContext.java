@@ -0,0 +1,113 @@
+package pilots.runtime;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+
+// RuntimeContext holds the state shared by the parts of one running PILOTS
+// program: the data stores, the methods registered for each variable, the
+// current location/time service and the runtime properties (e.g.,
+// "timeRange"). Programs normally share the default context; several
+// programs can run in one JVM, e.g., by BatchRunner, each in its own context.
+//
+// The static accessors such as DataStore.findStore and
+// ServiceFactory.getCurrentLocationTime use the context of the calling
+// thread, which is set by setCurrent and is the default context otherwise.
+//
+// The evaluation of a program runs in ticks, started by beginTick. An input
+// is resolved once per tick: model() inputs read their arguments, which are
+// inputs themselves and may be model() inputs too, and the inputs already
+// resolved on the tick are neither read nor predicted again.
+public class RuntimeContext {
+    private static Logger LOGGER = Logger.getLogger(RuntimeContext.class.getName());
+
+    private static final RuntimeContext defaultContext = new RuntimeContext("default");
+    private static final ThreadLocal<RuntimeContext> currentContext = new ThreadLocal<>();
+
+    private String name;
+    private Map<String, String> properties = new ConcurrentHashMap<>();
+    private CurrentLocationTimeService currLocTime = null;
+
+    // used by DataStore
+    Map<String, DataStore> storesByHeader = new ConcurrentHashMap<>();
+    Map<String, DataStore> storesByVarName = new ConcurrentHashMap<>();
+    Map<String, Method[]> methodDictionary = new ConcurrentHashMap<>();
+    Map<String, TickValue> tickValues = new ConcurrentHashMap<>();
+
+    private volatile long tick = 0;     // no tick has started while 0
+
+    // TickValue is the value of an input resolved on a tick with methods
+    static class TickValue {
+        long tick;
+        Method[] methods;
+        Double value;
+        boolean resolving;      // its model() arguments are being resolved
+    }
+
+    public RuntimeContext(String name) {
+        this.name = name;
+    }
+
+    public static RuntimeContext getDefault() {
+        return defaultContext;
+    }
+
+    public static RuntimeContext current() {
+        RuntimeContext context = currentContext.get();
+        return (context != null) ? context : defaultContext;
+    }
+
+    // setCurrent makes context the context of the calling thread and
+    // returns the previous one, which the caller should restore when done
+    public static RuntimeContext setCurrent(RuntimeContext context) {
+        RuntimeContext prev = current();
+        if (context == null || context == defaultContext)
+            currentContext.remove();
+        else
+            currentContext.set(context);
+        return prev;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // getProperty returns the property set to this context, or the system
+    // property of the same name
+    public String getProperty(String key) {
+        String value = properties.get(key);
+        return (value != null) ? value : System.getProperty(key);
+    }
+
+    public void setProperty(String key, String value) {
+        properties.put(key, value);
+    }
+
+    // beginTick starts an evaluation tick, after which the inputs are
+    // resolved again
+    public void beginTick() {
+        tick++;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public synchronized CurrentLocationTimeService getCurrentLocationTime() {
+        if (currLocTime == null) {
+            // the service may look up this context, e.g., for "timeRange"
+            RuntimeContext prev = setCurrent(this);
+            try {
+                currLocTime = ServiceFactory.createCurrentLocationTime(getProperty("currLocTime"));
+            } finally {
+                setCurrent(prev);
+            }
+        }
+        return currLocTime;
+    }
+
+    public String toString() {
+        return "RuntimeContext(" + name + ")";
+    }
+}
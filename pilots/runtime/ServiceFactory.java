@@ -7,9 +7,6 @@ import java.util.logging.Logger;
 public class ServiceFactory {
     private static Logger LOGGER = Logger.getLogger(ServiceFactory.class.getName());
     
-	// Service implementations
-    private static CurrentLocationTimeService currLocTime = null;
-
     // Default service classes
     private static String currLocTimeClass = "pilots.runtime.SimpleTimeService";    
 
@@ -18,33 +15,33 @@ public class ServiceFactory {
         ServiceFactory.currLocTimeClass = currLocTimeClass;
     }
 
-    public synchronized static CurrentLocationTimeService getCurrentLocationTime() {
-        if (currLocTime == null) {
-            String className = null;
-            className = System.getProperty("currLocTime");
+    // getCurrentLocationTime returns the service of the current RuntimeContext
+    public static CurrentLocationTimeService getCurrentLocationTime() {
+        return RuntimeContext.current().getCurrentLocationTime();
+    }
 
-            if (className == null)
-                className = currLocTimeClass;
+    static CurrentLocationTimeService createCurrentLocationTime(String className) {
+        CurrentLocationTimeService currLocTime = null;
 
-            try {
-                currLocTime = (CurrentLocationTimeService)Class
-                    .forName(className)
-                    .getDeclaredConstructor()
-                    .newInstance();
-            } 
-            catch (Exception ex) {
-                System.err.println(ex);
+        if (className == null) {
+            synchronized (ServiceFactory.class) {
+                className = currLocTimeClass;
             }
+        }
 
-            Date currTime = currLocTime.getTime();
-            LOGGER.finest("currTime=" + currTime + ", className=" + className);
+        try {
+            currLocTime = (CurrentLocationTimeService)Class
+                .forName(className)
+                .getDeclaredConstructor()
+                .newInstance();
+        } 
+        catch (Exception ex) {
+            System.err.println(ex);
         }
 
+        Date currTime = currLocTime.getTime();
+        LOGGER.finest("currTime=" + currTime + ", className=" + className);
+
         return currLocTime;
     }
 }
-    
-
-
-
-
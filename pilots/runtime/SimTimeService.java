@@ -13,10 +13,27 @@ import pilots.runtime.*;
 public class SimTimeService implements CurrentLocationTimeService {
     private static Logger LOGGER = Logger.getLogger(SimTimeService.class.getName());
     
+    private static final String[] LOCATION_VAR_NAMES = { "x", "y", "z" };
+
     private Date now, end;
+    private RuntimeContext context;
+
+    // The location is interpolated once per time step rather than on every
+    // spatial read, and again only if samples of x, y or z arrive meanwhile.
+    // The cursors of the bindings move forward with the time.
+    private InputBinding[] locationBindings;
+    private double[] location = null;
+    private long[] locationVersions = new long[LOCATION_VAR_NAMES.length];
 
     public SimTimeService() {
-        String timeRange = System.getProperty("timeRange");
+        context = RuntimeContext.current();
+        locationBindings = new InputBinding[LOCATION_VAR_NAMES.length];
+        for (int i = 0; i < locationBindings.length; i++) {
+            locationBindings[i] = new InputBinding(LOCATION_VAR_NAMES[i],
+                                                   new Method(Method.INTERPOLATE, "t", "2"));
+        }
+
+        String timeRange = context.getProperty("timeRange");
         if (timeRange == null) {
             // should throw an exception here
             LOGGER.severe("Need \"timeRange\" property to be set!!!");
@@ -50,17 +67,37 @@ public class SimTimeService implements CurrentLocationTimeService {
     }
 
     public double[] getLocation() {
-        String[] varNames = { "x", "y", "z" };
-        double[] locations = new double[3];
-        Method[] methods = { new Method(Method.INTERPOLATE, "t", "2") };
+        if (location == null || isLocationChanged())
+            location = resolveLocation();
+        return location.clone();
+    }
+
+    private boolean isLocationChanged() {
+        for (int i = 0; i < locationBindings.length; i++) {
+            if (getVersion(locationBindings[i]) != locationVersions[i])
+                return true;
+        }
+        return false;
+    }
+
+    private long getVersion(InputBinding binding) {
+        DataStore store = binding.getStore();
+        return (store != null) ? store.getVersion() : -1;
+    }
+
+    private double[] resolveLocation() {
+        double[] locations = new double[LOCATION_VAR_NAMES.length];
 
-        for (int i = 0; i < 3; i++) {
-            DataStore store = DataStore.findStore(varNames[i]);
+        for (int i = 0; i < locationBindings.length; i++) {
+            // the version before reading, so that a concurrent addData is
+            // noticed by the next call
+            locationVersions[i] = getVersion(locationBindings[i]);
+            DataStore store = locationBindings[i].getStore();
             if (store != null) {
-                locations[i] = store.getData(varNames[i], methods);
+                locations[i] = store.getLatestData(locationBindings[i]);
             }
             else {
-                LOGGER.warning("No matching variable stored for \"" + varNames[i] + "\"");
+                LOGGER.warning("No matching variable stored for \"" + LOCATION_VAR_NAMES[i] + "\"");
             }
         }
 
@@ -69,6 +106,7 @@ public class SimTimeService implements CurrentLocationTimeService {
 
     public void progressTime(long offset) { // offset in msec
         now.setTime(now.getTime() + offset);
+        location = null;
     }
 
     public boolean isEndTime() {
@@ -0,0 +1,332 @@
+package pilots.runtime;
+
+import java.util.Arrays;
+
+
+// SpatialGrid is a uniform grid index over the locations of the rows of a
+// ColumnStore on one, two or three of the x/y/z coordinates, so that the
+// rows closest to a location are found by looking at the cells around it
+// rather than at every row. Rows are identified by their absolute number
+// (see ColumnStore) and are added to the tail and removed from the head of
+// their cells as the store appends and evicts them.
+//
+// The distance of a row to a location is the smaller of the distances to
+// its start and end locations on each coordinate (see
+// ColumnStore.calcLocationDiff), so a row located by intervals is put in
+// the cells of all the corners of its intervals.
+public class SpatialGrid {
+    // RowDistance gives the distance of an absolute row to the location
+    // being searched for, NaN if the row has no location
+    public interface RowDistance {
+        double of(long absRow);
+    }
+
+    private static final int MIN_TABLE_SIZE = 64;
+    private static final int BITS = 21;             // per cell index in a key
+    private static final long MASK = (1L << BITS) - 1;
+    private static final double MARGIN = 1e-6;      // of cellSize, for rounding errors
+
+    // Cell holds its rows in ascending order
+    private static class Cell {
+        long[] rows = new long[4];
+        int head = 0;
+        int size = 0;
+
+        void add(long row) {
+            if (head + size == rows.length) {
+                if (size < rows.length / 2)
+                    System.arraycopy(rows, head, rows, 0, size);
+                else
+                    rows = Arrays.copyOfRange(rows, head, head + rows.length * 2);
+                head = 0;
+            }
+            rows[head + size++] = row;
+        }
+
+        void remove(long row) {
+            if (size == 0)
+                return;
+            if (rows[head] == row) {
+                head++;
+                size--;
+                return;
+            }
+            for (int i = 1; i < size; i++) {
+                if (rows[head + i] == row) {
+                    System.arraycopy(rows, head + i + 1, rows, head + i, size - i - 1);
+                    size--;
+                    return;
+                }
+            }
+        }
+    }
+
+    private int dimension;
+    private double cellSize;
+
+    // open addressing table of the cells; emptied cells stay until the grid
+    // is rebuilt
+    private long[] keys = new long[MIN_TABLE_SIZE];
+    private Cell[] cells = new Cell[MIN_TABLE_SIZE];
+    private int numCells = 0;
+    private int numRows = 0;
+
+    private long[] cornerKeys;      // work area of add and remove
+
+    public SpatialGrid(int dimension, double cellSize) {
+        this.dimension = dimension;
+        this.cellSize = cellSize;
+        this.cornerKeys = new long[1 << dimension];
+    }
+
+    // getCellSize returns a cell size for about two rows per cell, given
+    // the bounding box of the locations of numRows rows
+    public static double getCellSize(double[] min, double[] max, int numRows) {
+        double volume = 1.0;
+        int numExtents = 0;
+        for (int c = 0; c < min.length; c++) {
+            double extent = max[c] - min[c];
+            if (0.0 < extent) {
+                volume *= extent;
+                numExtents++;
+            }
+        }
+        if (numExtents == 0 || numRows < 2)
+            return 1.0;
+
+        double cellSize = Math.pow(volume / (numRows / 2.0), 1.0 / numExtents);
+        return (0.0 < cellSize && cellSize < Double.POSITIVE_INFINITY) ? cellSize : 1.0;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    // add puts row in the cells of the corners of the intervals
+    // [starts[c], ends[c]]; rows must be added in ascending order. A row
+    // with a location out of range is not indexed and false is returned.
+    public boolean add(long row, double[] starts, double[] ends) {
+        int numCorners = getCornerKeys(starts, ends);
+        if (numCorners < 0)
+            return false;
+
+        for (int i = 0; i < numCorners; i++)
+            getOrCreateCell(cornerKeys[i]).add(row);
+        numRows++;
+        return true;
+    }
+
+    // remove takes row added with the same location out of its cells
+    public void remove(long row, double[] starts, double[] ends) {
+        int numCorners = getCornerKeys(starts, ends);
+        if (numCorners < 0)
+            return;
+
+        for (int i = 0; i < numCorners; i++) {
+            Cell cell = getCell(cornerKeys[i]);
+            if (cell != null)
+                cell.remove(row);
+        }
+        numRows--;
+    }
+
+    // nearest returns the rows at the minimum distance to location, in
+    // ascending order, as a linear scan comparing the distances of all the
+    // rows would. Rows at a NaN distance are never returned.
+    public long[] nearest(double[] location, RowDistance distance) {
+        long[] center = new long[3];
+        for (int c = 0; c < dimension; c++) {
+            if (Double.isNaN(location[c]) || Double.isInfinite(location[c]))
+                return new long[0];
+            center[c] = cellIndex(location[c]);
+        }
+
+        double minDist = Double.MAX_VALUE;
+        long[] found = new long[8];
+        int numFound = 0;
+        int numVisited = 0;
+        long[] key = new long[3];
+
+        // the rows in the cells r cells away from the center are at least
+        // (r - 1) * cellSize away from location
+        for (int r = 0; (r - 1 - MARGIN) * cellSize <= minDist; r++) {
+            if (numCells <= numVisited) {
+                // mostly empty cells around, e.g., far from the rows
+                return scan(distance);
+            }
+
+            int r1 = (1 < dimension) ? r : 0;
+            int r2 = (2 < dimension) ? r : 0;
+            for (long i0 = -r; i0 <= r; i0++) {
+                for (long i1 = -r1; i1 <= r1; i1++) {
+                    for (long i2 = -r2; i2 <= r2; i2++) {
+                        if (Math.max(Math.abs(i0), Math.max(Math.abs(i1), Math.abs(i2))) != r)
+                            continue;   // visited on an inner ring
+                        numVisited++;
+
+                        key[0] = center[0] + i0;
+                        key[1] = center[1] + i1;
+                        key[2] = center[2] + i2;
+                        Cell cell = getCell(toKey(key));
+                        if (cell == null)
+                            continue;
+
+                        for (int j = 0; j < cell.size; j++) {
+                            long row = cell.rows[cell.head + j];
+                            double dist = distance.of(row);
+                            if (dist < minDist) {
+                                numFound = 0;
+                                minDist = dist;
+                            }
+                            if (dist == minDist) {
+                                if (numFound == found.length)
+                                    found = Arrays.copyOf(found, numFound * 2);
+                                found[numFound++] = row;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return sortUnique(found, numFound);
+    }
+
+    // scan compares the distances of all the rows in the grid
+    private long[] scan(RowDistance distance) {
+        double minDist = Double.MAX_VALUE;
+        long[] found = new long[8];
+        int numFound = 0;
+
+        for (Cell cell : cells) {
+            if (cell == null)
+                continue;
+            for (int j = 0; j < cell.size; j++) {
+                long row = cell.rows[cell.head + j];
+                double dist = distance.of(row);
+                if (dist < minDist) {
+                    numFound = 0;
+                    minDist = dist;
+                }
+                if (dist == minDist) {
+                    if (numFound == found.length)
+                        found = Arrays.copyOf(found, numFound * 2);
+                    found[numFound++] = row;
+                }
+            }
+        }
+
+        return sortUnique(found, numFound);
+    }
+
+    // sortUnique sorts rows, which may be found in several cells, and
+    // removes the duplicates
+    private static long[] sortUnique(long[] rows, int numRows) {
+        Arrays.sort(rows, 0, numRows);
+        int num = 0;
+        for (int i = 0; i < numRows; i++) {
+            if (num == 0 || rows[num - 1] != rows[i])
+                rows[num++] = rows[i];
+        }
+        return Arrays.copyOf(rows, num);
+    }
+
+    // getCornerKeys puts the distinct keys of the cells of the corners in
+    // cornerKeys and returns their number, or -1 if a location is not finite
+    private int getCornerKeys(double[] starts, double[] ends) {
+        long[] startIdx = new long[3];
+        long[] endIdx = new long[3];
+        for (int c = 0; c < dimension; c++) {
+            if (!isFinite(starts[c]) || !isFinite(ends[c]))
+                return -1;
+            startIdx[c] = cellIndex(starts[c]);
+            endIdx[c] = cellIndex(ends[c]);
+        }
+
+        int numCorners = 0;
+        long[] key = new long[3];
+        for (int corner = 0; corner < (1 << dimension); corner++) {
+            for (int c = 0; c < dimension; c++)
+                key[c] = ((corner & (1 << c)) == 0) ? startIdx[c] : endIdx[c];
+            long k = toKey(key);
+
+            boolean found = false;
+            for (int i = 0; i < numCorners && !found; i++)
+                found = (cornerKeys[i] == k);
+            if (!found)
+                cornerKeys[numCorners++] = k;
+        }
+        return numCorners;
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    private long cellIndex(double value) {
+        return (long)Math.floor(value / cellSize);
+    }
+
+    // toKey packs cell indices into a key. Far apart cells may share a key,
+    // which only makes their rows be looked at together.
+    private static long toKey(long[] index) {
+        return ((index[0] & MASK) << (2 * BITS)) | ((index[1] & MASK) << BITS) | (index[2] & MASK);
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h >>> 32) & mask;
+    }
+
+    private Cell getCell(long key) {
+        Cell[] cells = this.cells;
+        long[] keys = this.keys;
+        int mask = keys.length - 1;
+        if (cells.length != keys.length)
+            return null;    // being resized by a concurrent add
+        for (int i = slot(key, mask), n = 0; n < keys.length; i = (i + 1) & mask, n++) {
+            if (cells[i] == null)
+                return null;
+            if (keys[i] == key)
+                return cells[i];
+        }
+        return null;
+    }
+
+    private Cell getOrCreateCell(long key) {
+        Cell cell = getCell(key);
+        if (cell != null)
+            return cell;
+
+        if (keys.length <= 2 * (numCells + 1))
+            resize();
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (cells[i] != null)
+            i = (i + 1) & mask;
+        cell = new Cell();
+        keys[i] = key;
+        cells[i] = cell;
+        numCells++;
+        return cell;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Cell[] oldCells = cells;
+        long[] newKeys = new long[oldKeys.length * 2];
+        Cell[] newCells = new Cell[oldKeys.length * 2];
+        int mask = newKeys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldCells[j] == null)
+                continue;
+            int i = slot(oldKeys[j], mask);
+            while (newCells[i] != null)
+                i = (i + 1) & mask;
+            newKeys[i] = oldKeys[j];
+            newCells[i] = oldCells[j];
+        }
+        keys = newKeys;
+        cells = newCells;
+    }
+}
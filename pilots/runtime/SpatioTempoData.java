@@ -13,6 +13,13 @@ public class SpatioTempoData {
     public static String timeZoneID = "America/New_York";
 
     private static int currentId = 0;
+    private static boolean timeZoneInitialized = false;
+    private static final TimeZone systemTimeZone = TimeZone.getDefault();  // before initTimeZone
+    private static final ThreadLocal<DataParser> parser = new ThreadLocal<DataParser>() {
+        protected DataParser initialValue() {
+            return new DataParser();
+        }
+    };
 
     private int id;
     private double[][] locations;
@@ -20,7 +27,7 @@ public class SpatioTempoData {
     private boolean isLocationInterval;
     private boolean hasLocations;
 
-    private DateFormat dateFormat;     // not thread safe
+    private DateFormat dateFormat;     // not thread safe, created on demand
     private Date[] times;
     private boolean isTimeInterval;
     private boolean hasTimes;
@@ -37,11 +44,11 @@ public class SpatioTempoData {
         isLocationInterval = false;
         hasLocations = false;
 
-        dateFormat = new SimpleDateFormat(datePattern);
+        dateFormat = null;
         times = null;
         isTimeInterval = false;
         hasTimes = false;
-        TimeZone.setDefault(TimeZone.getTimeZone(timeZoneID));
+        initTimeZone();
 
         values = new ArrayList<>();
 
@@ -56,11 +63,11 @@ public class SpatioTempoData {
         isLocationInterval = false;
         hasLocations = false;
 
-        dateFormat = new SimpleDateFormat(datePattern);
+        dateFormat = null;
         times = null;
         isTimeInterval = false;
         hasTimes = false;
-        TimeZone.setDefault(TimeZone.getTimeZone(timeZoneID));
+        initTimeZone();
 
         values = new ArrayList<>();
 
@@ -102,75 +109,55 @@ public class SpatioTempoData {
     }
 
 
+    // initTimeZone sets the default time zone to timeZoneID only once
+    public static synchronized void initTimeZone() {
+        if (!timeZoneInitialized) {
+            TimeZone.setDefault(TimeZone.getTimeZone(timeZoneID));
+            timeZoneInitialized = true;
+        }
+    }
+
+    // getSystemTimeZone returns the default time zone of the JVM before
+    // initTimeZone changed it
+    public static TimeZone getSystemTimeZone() {
+        return systemTimeZone;
+    }
+
     // format
     // "(<Double>(,<Double>)?(,<Double>)?)?:<Date>(~<Date>)?:(<Double>(,<Double>)*)?"
     // e.g. <Date> -> yyyy-MM-dd HHmmssSSSZ
     public boolean parse(String str) {
-
-        String[] data = str.split(":");
-
-        for (int i = 0; i < data.length; i++)
-            LOGGER.finest(data[i]);
+        DataParser p = parser.get();
+        if (!p.parse(str))
+            return false;
 
         // Spatio part
-        if (0 < data[0].length()) {
-            String[] locationStr = data[0].split("~");
-            if (2 < locationStr.length) {
-                LOGGER.warning("Invalid location length: " + locationStr.length);
-                return false;
-            }
-            isLocationInterval = (locationStr.length == 2) ? true : false;
-
-            for (int i = 0; i < locationStr.length; i++) {
-                // check spatial dimension
-                String[] dimensionStr = locationStr[i].split(",");
-                if (Dimension.MAX_SPATIAL_DIMENSION < dimensionStr.length) {
-                    LOGGER.warning("Invalid dimension length: " + dimensionStr.length);
-                    return false;
-                }
-                dimension = new Dimension(dimensionStr.length);
-
-                // alloc locations
-                locations = (isLocationInterval) ? 
-                    new double[2][dimensionStr.length] : 
-                    new double[1][dimensionStr.length];
-
-                for (int j = 0; j < dimensionStr.length; j++) {
-                    locations[i][j] = Double.parseDouble(dimensionStr[j]);
-                }
+        if (p.hasLocations()) {
+            isLocationInterval = p.isLocationInterval();
+            dimension = new Dimension(p.getDimension());
+            locations = (isLocationInterval) ? 
+                new double[2][p.getDimension()] : 
+                new double[1][p.getDimension()];
+            for (int i = 0; i < locations.length; i++) {
+                for (int j = 0; j < p.getDimension(); j++)
+                    locations[i][j] = p.getLocation(i, j);
             }
             hasLocations = true;
         }
 
         // Temporal part
-        if (0 < data[1].length()) {
-            String[] timeStr = data[1].split("~");
-            if (2 < timeStr.length) {
-                LOGGER.warning("Invalid time length: " + timeStr.length);
-                return false;
-            }
-            isTimeInterval = (timeStr.length == 2) ? true : false;
-        
-            // alloc times
+        if (p.hasTimes()) {
+            isTimeInterval = p.isTimeInterval();
             times = (isTimeInterval) ? new Date[2] : new Date[1];
-
-            for (int i = 0; i < timeStr.length; i++) {
-                try {
-                    // dateFormat = new SimpleDateFormat("yyyy-MM-dd HHMMZ");
-                    times[i] = dateFormat.parse(timeStr[i]);
-                } catch (ParseException ex) {
-                    LOGGER.warning(ex.toString());
-                }
-            }
+            times[0] = new Date(p.getStartTime());
+            if (isTimeInterval)
+                times[1] = new Date(p.getEndTime());
             hasTimes = true;
         }
 
         // Value part
-        if (0 < data[2].length()) {
-            String[] valueStr = data[2].split(",");
-            for (int i = 0; i < valueStr.length; i++)
-                values.add(Double.parseDouble(valueStr[i]));
-        }
+        for (int i = 0; i < p.getNumValues(); i++)
+            values.add(p.getValue(i));
 
         return true;
     }
@@ -203,6 +190,14 @@ public class SpatioTempoData {
         return values;
     }
 
+    public int getNumValues() {
+        return values.size();
+    }
+
+    public double[][] getLocations() {
+        return locations;
+    }
+
     public boolean hasLocations() {
         return hasLocations;
     }
@@ -245,6 +240,8 @@ public class SpatioTempoData {
         }
         
         if (times != null) {
+            if (dateFormat == null)
+                dateFormat = new SimpleDateFormat(datePattern);
             builder.append(":" + dateFormat.format(times[0]));
             if (isTimeInterval)
                 builder.append("~" + dateFormat.format(times[1]));
@@ -0,0 +1,277 @@
+package pilots.runtime;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+
+// TenantHost runs many instances of one PILOTS program, compiled without
+// --sim, in one JVM: one instance per tenant, e.g., per aircraft of a fleet.
+// Each instance has its own RuntimeContext, so that its data stores,
+// methods and time service are isolated from the other instances, while all
+// of them share one DataReceiver server and the scheduler of PilotsRuntime.
+// An instance costs its stores and fields, not a port and threads.
+//
+// A producer selects its tenant by sending "@<tenant id>" before the header,
+// by a partition key in the header, "#var1,var2@<tenant id>", or per
+// sample, "<tenant id>@<data>", e.g., to send a whole fleet on one
+// connection (see DataReceiver). The samples of each tenant go to its own
+// stores and are evaluated by its own instance.
+//
+// "{tenant}" in the program arguments is replaced by the tenant id, e.g.,
+// "--namespace {tenant}" tells the outputs of the tenants apart.
+//
+// Usage: TenantHost [-p port] [--tenants id1,id2,...] [--create [--max-tenants n]]
+//                   <program class> [program args]
+// With --create, a tenant is started when a producer first selects it by
+// "@<tenant id>" or a header, up to --max-tenants tenants; otherwise only
+// the tenants listed by --tenants are accepted. The samples of a partition
+// key never start a tenant. A tenant started on demand accepts samples at
+// once, while its instance is built by a starter thread, off the receiver.
+public class TenantHost {
+    private static Logger LOGGER = Logger.getLogger(TenantHost.class.getName());
+
+    private static final int DEFAULT_INPUT_PORT = 8888;
+    private static final String TENANT_VAR = "{tenant}";
+    private static final int DEFAULT_MAX_TENANTS = 1000;
+
+    // Tenant is one instance of the program
+    public static class Tenant {
+        private String id;
+        private RuntimeContext context;
+        private volatile PilotsRuntime program;     // null while starting
+
+        Tenant(String id, RuntimeContext context, PilotsRuntime program) {
+            this.id = id;
+            this.context = context;
+            this.program = program;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public RuntimeContext getContext() {
+            return context;
+        }
+
+        public PilotsRuntime getProgram() {
+            return program;
+        }
+
+        public String toString() {
+            return "Tenant(" + id + ")";
+        }
+    }
+
+    private Constructor<? extends PilotsRuntime> constructor;
+    private String[] args;
+    private boolean createOnDemand = false;
+    private int maxTenants = DEFAULT_MAX_TENANTS;
+    private Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+    private ExecutorService starter = null;
+
+    public TenantHost(Class<? extends PilotsRuntime> programClass, String... args)
+        throws NoSuchMethodException {
+        this.constructor = programClass.getConstructor(String[].class);
+        this.args = args;
+    }
+
+    // setCreateOnDemand makes unknown tenants selected by producers started
+    public void setCreateOnDemand(boolean createOnDemand) {
+        this.createOnDemand = createOnDemand;
+    }
+
+    // setMaxTenants bounds the number of tenants, beyond which no tenant is
+    // started on demand
+    public void setMaxTenants(int maxTenants) {
+        this.maxTenants = maxTenants;
+    }
+
+    public Tenant getTenant(String id) {
+        return tenants.get(id);
+    }
+
+    public Collection<Tenant> getTenants() {
+        return tenants.values();
+    }
+
+    // addTenant creates and starts the instance for id unless it exists
+    public synchronized Tenant addTenant(String id) throws ReflectiveOperationException {
+        Tenant tenant = tenants.get(id);
+        if (tenant != null)
+            return tenant;
+
+        tenant = new Tenant(id, new RuntimeContext(id), null);
+        tenant.program = newProgram(tenant);
+        tenants.put(id, tenant);
+        LOGGER.info("Tenant " + id + " started, " + tenants.size() + " tenants");
+        return tenant;
+    }
+
+    // newProgram creates the instance of tenant and starts it
+    private PilotsRuntime newProgram(Tenant tenant) throws ReflectiveOperationException {
+        RuntimeContext prev = RuntimeContext.setCurrent(tenant.context);
+        try {
+            PilotsRuntime program = constructor.newInstance((Object)getArgs(tenant.id));
+            // opens the outputs and schedules the ticks of the program
+            program.produceOutputs();
+            return program;
+        } finally {
+            RuntimeContext.setCurrent(prev);
+        }
+    }
+
+    // removeTenant stops the instance for id and discards its data
+    public synchronized void removeTenant(String id) {
+        Tenant tenant = tenants.remove(id);
+        if (tenant == null)
+            return;
+        // an instance still starting is stopped by its starter
+        if (tenant.program != null)
+            stopProgram(tenant.program);
+        LOGGER.info("Tenant " + id + " stopped, " + tenants.size() + " tenants");
+    }
+
+    private static void stopProgram(PilotsRuntime program) {
+        program.cancelTasks();
+        program.closeOutputs();
+    }
+
+    private String[] getArgs(String id) {
+        String[] tenantArgs = new String[args.length];
+        for (int i = 0; i < args.length; i++)
+            tenantArgs[i] = args[i].replace(TENANT_VAR, id);
+        return tenantArgs;
+    }
+
+    // getContext returns the context of tenant id for DataReceiver, starting
+    // the tenant if create is true, i.e., the tenant is selected by a
+    // producer, and the tenants are created on demand
+    private RuntimeContext getContext(String id, boolean create) {
+        Tenant tenant = tenants.get(id);
+        if (tenant == null && create && createOnDemand)
+            tenant = startTenant(id);
+        return (tenant != null) ? tenant.context : null;
+    }
+
+    // startTenant adds the tenant for id at once and has its instance
+    // built by the starter thread, so that the receiver is not held up
+    private synchronized Tenant startTenant(String id) {
+        Tenant tenant = tenants.get(id);
+        if (tenant != null)
+            return tenant;
+        if (maxTenants <= tenants.size()) {
+            LOGGER.warning("Too many tenants (" + maxTenants + "), tenant " + id + " not started");
+            return null;
+        }
+
+        final Tenant newTenant = new Tenant(id, new RuntimeContext(id), null);
+        tenants.put(id, newTenant);
+        getStarter().execute(new Runnable() {
+                public void run() {
+                    startProgram(newTenant);
+                }
+            });
+        return newTenant;
+    }
+
+    private void startProgram(Tenant tenant) {
+        PilotsRuntime program;
+        try {
+            program = newProgram(tenant);
+        } catch (InvocationTargetException ex) {
+            LOGGER.severe("Unable to start tenant " + tenant.id + ": " + ex.getCause());
+            tenants.remove(tenant.id, tenant);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // e.g., thrown by produceOutputs of the new instance
+            LOGGER.severe("Unable to start tenant " + tenant.id + ": " + ex);
+            tenants.remove(tenant.id, tenant);
+            return;
+        }
+
+        synchronized (this) {
+            if (tenants.get(tenant.id) != tenant) {
+                // removed while starting
+                stopProgram(program);
+                return;
+            }
+            tenant.program = program;
+            LOGGER.info("Tenant " + tenant.id + " started, " + tenants.size() + " tenants");
+        }
+    }
+
+    private synchronized ExecutorService getStarter() {
+        if (starter == null) {
+            starter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "TenantHost-starter");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return starter;
+    }
+
+    public void startServer(int port) {
+        DataReceiver.startServer(port, this::getContext);
+    }
+
+    public void stopServer() {
+        DataReceiver.stopServer();
+        for (String id : new ArrayList<>(tenants.keySet()))
+            removeTenant(id);
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_INPUT_PORT;
+        List<String> ids = new ArrayList<>();
+        boolean create = false;
+        int maxTenants = DEFAULT_MAX_TENANTS;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            if ((args[i].equals("-p") || args[i].equals("--port")) && i + 1 < args.length)
+                port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--tenants") && i + 1 < args.length)
+                ids.addAll(Arrays.asList(args[++i].split(",")));
+            else if (args[i].equals("--create"))
+                create = true;
+            else if (args[i].equals("--max-tenants") && i + 1 < args.length)
+                maxTenants = Integer.parseInt(args[++i]);
+            else
+                break;
+        }
+        if (args.length <= i) {
+            System.err.println("Usage: TenantHost [-p port] [--tenants id1,id2,...] [--create [--max-tenants n]]"
+                               + " <program class> [program args]");
+            System.exit(1);
+        }
+
+        try {
+            Class<? extends PilotsRuntime> programClass =
+                Class.forName(args[i]).asSubclass(PilotsRuntime.class);
+            TenantHost host = new TenantHost(programClass, Arrays.copyOfRange(args, i + 1, args.length));
+            host.setCreateOnDemand(create);
+            host.setMaxTenants(maxTenants);
+            for (String id : ids) {
+                if (!id.isEmpty())
+                    host.addTenant(id);
+            }
+            host.startServer(port);
+        } catch (InvocationTargetException ex) {
+            LOGGER.severe(ex.getCause().toString());
+            System.exit(1);
+        } catch (Exception ex) {
+            LOGGER.severe(ex.toString());
+            System.exit(1);
+        }
+    }
+}
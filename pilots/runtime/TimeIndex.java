@@ -0,0 +1,276 @@
+package pilots.runtime;
+
+import java.util.Arrays;
+
+
+// TimeIndex keeps the start/end times (msec) of the rows of a ColumnStore
+// in primitive columns laid out by the store's RingBuffer. As long as the
+// rows arrive in time order, closest(t) is answered by binary search on the
+// time columns instead of a linear scan. A Cursor remembers where the
+// previous search ended, so a sequence of searches for non-decreasing t, as
+// in simulation, walks the rows once in total.
+public class TimeIndex {
+    // Cursor keeps the lower bounds of t in the start and end time columns
+    // found by the last closest(t) call. Rows are identified by their
+    // absolute number so that the cursor stays valid over removeFirst().
+    public static class Cursor {
+        long start = 0;
+        long end = 0;
+    }
+
+
+    private RingBuffer ring;       // shared with the store
+    private long[] starts;
+    private long[] ends;
+    private boolean[] timed;
+
+    private int numUntimed;        // # of rows without times
+    private int numInversions;     // # of adjacent row pairs out of time order
+
+    public TimeIndex(RingBuffer ring) {
+        this.ring = ring;
+        this.starts = new long[ring.getCapacity()];
+        this.ends = new long[ring.getCapacity()];
+        this.timed = new boolean[ring.getCapacity()];
+        this.numUntimed = 0;
+        this.numInversions = 0;
+    }
+
+    // add puts the times of the line last parsed by parser at pos, which
+    // the ring has just added as the newest row
+    public void add(int pos, DataParser parser) {
+        if (parser.hasTimes()) {
+            starts[pos] = parser.getStartTime();
+            ends[pos] = parser.getEndTime();
+            timed[pos] = true;
+        }
+        else {
+            timed[pos] = false;
+            numUntimed++;
+        }
+
+        int size = ring.size();
+        if (1 < size && isInversion(size - 2))
+            numInversions++;
+    }
+
+    // removeFirst must be called before the ring evicts its oldest row
+    public void removeFirst() {
+        if (ring.size() == 0)
+            return;
+
+        if (1 < ring.size() && isInversion(0))
+            numInversions--;
+        if (!timed[ring.position(0)])
+            numUntimed--;
+    }
+
+    public void clear() {
+        numUntimed = 0;
+        numInversions = 0;
+    }
+
+    // grow must be called before the ring grows, see RingBuffer
+    public void grow(int capacity) {
+        starts = ring.unwrap(starts, capacity);
+        ends = ring.unwrap(ends, capacity);
+        timed = ring.unwrap(timed, capacity);
+    }
+
+    public boolean hasTimes(int row) {
+        return timed[ring.position(row)];
+    }
+
+    public long getStart(int row) {
+        return starts[ring.position(row)];
+    }
+
+    public long getEnd(int row) {
+        return ends[ring.position(row)];
+    }
+
+    // calcTimeDiff has the same semantics as SpatioTempoData.calcTimeDiff
+    public long calcTimeDiff(int row, long base) {
+        int pos = ring.position(row);
+        return Math.min(Math.abs(starts[pos] - base), Math.abs(ends[pos] - base));
+    }
+
+    // isOrdered returns true if every row has times and both start and end
+    // times are non-decreasing, i.e., closest(t) gives exact results.
+    public boolean isOrdered() {
+        return numUntimed == 0 && numInversions == 0;
+    }
+
+    // closest returns the rows whose time is the closest to t, in ascending
+    // order. The semantics are the same as the linear scan in
+    // DataStore.applyClosest: the distance of a row is the smaller of the
+    // distances to its start and end times, only the first exact match is
+    // returned, and all rows at the minimum distance are returned
+    // otherwise. Must be called only when isOrdered() is true.
+    public int[] closest(long t) {
+        return closest(t, null);
+    }
+
+    // closest with a cursor, which is updated for the next call
+    public int[] closest(long t, Cursor cursor) {
+        int size = ring.size();
+        if (size == 0)
+            return new int[0];
+
+        int[] bounds = lowerBounds(t, cursor);
+        int sIdx = bounds[0];
+        int eIdx = bounds[1];
+        long minDiff = Long.MAX_VALUE;
+        minDiff = Math.min(minDiff, diffAt(starts, sIdx, t));
+        minDiff = Math.min(minDiff, diffAt(starts, sIdx - 1, t));
+        minDiff = Math.min(minDiff, diffAt(ends, eIdx, t));
+        minDiff = Math.min(minDiff, diffAt(ends, eIdx - 1, t));
+
+        if (minDiff == 0) {
+            // the first row matching exactly
+            int first = size;
+            if (sIdx < size && getStart(sIdx) == t)
+                first = sIdx;
+            if (eIdx < size && getEnd(eIdx) == t)
+                first = Math.min(first, eIdx);
+            return new int[] { first };
+        }
+
+        // rows at the minimum distance form up to four contiguous runs
+        long lower = t - minDiff;
+        long upper = t + minDiff;
+        // which are next to sIdx and eIdx
+        int[][] runs = {
+            { lowerBound(starts, lower, sIdx), lowerBound(starts, lower + 1, sIdx) },
+            { lowerBound(starts, upper, sIdx), lowerBound(starts, upper + 1, sIdx) },
+            { lowerBound(ends, lower, eIdx), lowerBound(ends, lower + 1, eIdx) },
+            { lowerBound(ends, upper, eIdx), lowerBound(ends, upper + 1, eIdx) }
+        };
+
+        int from = size, to = 0;
+        for (int[] run : runs) {
+            if (run[0] < run[1]) {
+                from = Math.min(from, run[0]);
+                to = Math.max(to, run[1]);
+            }
+        }
+
+        int num = 0;
+        int[] found = new int[to - from];
+        for (int i = from; i < to; i++) {
+            if (calcTimeDiff(i, t) == minDiff)
+                found[num++] = i;
+        }
+
+        return Arrays.copyOf(found, num);
+    }
+
+    // nearest returns the range [from, to) of rows which contains the k
+    // rows whose times are the closest to t, i.e., the first k rows when all
+    // the rows are stably sorted by calcTimeDiff, so that interpolate(t, k)
+    // looks at those rows only. Must be called only when isOrdered() is true.
+    public int[] nearest(long t, int k, Cursor cursor) {
+        int size = ring.size();
+        if (size == 0)
+            return new int[] { 0, 0 };
+
+        int[] bounds = lowerBounds(t, cursor);
+        int low = Math.min(bounds[0], bounds[1]);
+        int high = Math.max(bounds[0], bounds[1]);
+
+        // both times of the rows before low are before t, so the distance
+        // grows as the row goes back from low, and likewise after high.
+        // Rows in between are taken as they are.
+        int from = Math.max(low - k, 0);
+        if (0 < from) {
+            // rows tied with the first one come earlier in a stable sort
+            long diff = calcTimeDiff(from, t);
+            while (0 < from && calcTimeDiff(from - 1, t) == diff)
+                from--;
+        }
+        int to = (int)Math.min((long)high + k, size);
+
+        return new int[] { from, to };
+    }
+
+    // lowerBounds returns the first rows whose start and end times are
+    // greater than or equal to t, updating cursor if any
+    private int[] lowerBounds(long t, Cursor cursor) {
+        int sIdx, eIdx;
+        if (cursor != null) {
+            sIdx = lowerBound(starts, t, hintRow(cursor.start));
+            eIdx = lowerBound(ends, t, hintRow(cursor.end));
+            cursor.start = ring.getNumRemoved() + sIdx;
+            cursor.end = ring.getNumRemoved() + eIdx;
+        }
+        else {
+            sIdx = lowerBound(starts, t, 0, ring.size());
+            eIdx = lowerBound(ends, t, 0, ring.size());
+        }
+        return new int[] { sIdx, eIdx };
+    }
+
+    private int hintRow(long absRow) {
+        long row = absRow - ring.getNumRemoved();
+        return (row < 0) ? 0 : (int)Math.min(row, ring.size());
+    }
+
+    // lowerBound returns the first row whose time is greater than or equal
+    // to t, searching exponentially outward from hint. The cost is
+    // O(log d) where d is the distance between hint and the result.
+    private int lowerBound(long[] times, long t, int hint) {
+        int size = ring.size();
+        int low, high, step = 1;
+        if (hint < size && times[ring.position(hint)] < t) {
+            // the result is after hint
+            low = hint + 1;
+            high = low;
+            while (high < size && times[ring.position(high)] < t) {
+                low = high + 1;
+                high = low + step;
+                step <<= 1;
+            }
+            high = Math.min(high, size);
+        }
+        else {
+            // the result is hint or before
+            high = hint;
+            low = high - 1;
+            while (0 <= low && t <= times[ring.position(low)]) {
+                high = low;
+                low = high - step;
+                step <<= 1;
+            }
+            low = Math.max(low + 1, 0);
+        }
+        return lowerBound(times, t, low, high);
+    }
+
+    // lowerBound returns the first row in [low, high) whose time is greater
+    // than or equal to t, or high if there is no such row
+    private int lowerBound(long[] times, long t, int low, int high) {
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[ring.position(mid)] < t)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private long diffAt(long[] times, int row, long t) {
+        if (row < 0 || ring.size() <= row)
+            return Long.MAX_VALUE;
+        return Math.abs(times[ring.position(row)] - t);
+    }
+
+    private boolean isInversion(int row) {
+        // checks the pair (row, row + 1)
+        int pos = ring.position(row);
+        int next = ring.position(row + 1);
+        if (!timed[pos] || !timed[next])
+            return false;   // counted in numUntimed instead
+        return starts[next] < starts[pos] || ends[next] < ends[pos];
+    }
+}
@@ -28,8 +28,7 @@ public class ErrorAnalyzer {
         double[] deltas = new double[numSignatures];
         Arrays.fill(deltas, 0.0);
 
-        // calculate deltas array & find min delta
-        double minDelta = Double.MAX_VALUE;
+        // calculate deltas array
         for (int i = 0; i < numSignatures; i++) {
             ErrorSignature errorSig = errorSigs.get(i);
 
@@ -37,18 +36,7 @@ public class ErrorAnalyzer {
             case ErrorSignature.CONST:
                 if (errorSig.isConstrained()) {
                     // with constraints
-                    double closestFail = Double.MAX_VALUE;
-                    for (int j = 0; j < winSize; j++) {
-                        // find a reference point
-                        double ref = errorSig.getClosestEndPoint(win.at(j));
-                        // System.out.println("win.at(" + j + ")=" + win.at(j) + " --> ref=" + ref);
-                        double thisFail = 0.0;
-                        for (int k = 0; k < winSize; k++) 
-                            thisFail += calcDiff(win.at(k), ref);
-
-                        closestFail = (thisFail < closestFail) ? thisFail : closestFail;
-                    }
-                    deltas[i] = closestFail;
+                    deltas[i] = calcConstrainedConstDelta(win, errorSig);
                 }
                 else {
                     // no constraints
@@ -59,28 +47,25 @@ public class ErrorAnalyzer {
 
 
             case ErrorSignature.LINEAR:
-                double closestFail = Double.MAX_VALUE;
-                for (int j = 0; j < winSize; j++) {
-                    // use win.at(j) as a reference point
-                    double thisFail = 0.0;
-                    double ref = win.at(j);
-                    for (int k = 0; k < winSize; k++) {
-                        double anticipated = ref + ((k - j) * ((double)interval / 1000) * errorSig.getValue());
-                        thisFail += calcDiff(win.at(k), anticipated);
-                    }
-                    closestFail = (thisFail < closestFail) ? thisFail : closestFail;
-                }
-                deltas[i] = closestFail;
+                deltas[i] = calcLinearDelta(win, errorSig, interval);
                 break;
 
             default:
                 // error
                 break;
             }
-
-            minDelta = (deltas[i] < minDelta) ? deltas[i] : minDelta;
         }
 
+        return calcMode(deltas);
+    }
+
+    private int calcMode(double[] deltas) {
+        int numSignatures = deltas.length;
+
+        // find min delta
+        double minDelta = Double.MAX_VALUE;
+        for (int i = 0; i < numSignatures; i++)
+            minDelta = (deltas[i] < minDelta) ? deltas[i] : minDelta;
 
         // compute the mode likelihood vector
         int mode = -1;
@@ -111,6 +96,76 @@ public class ErrorAnalyzer {
         return mode;
     }
 
+    // The deltas of the constrained CONST and LINEAR signatures are the
+    // minimum, over reference points taken from the window, of
+    // f(r) = sum_k |y_k - r|, where y_k = win.at(k) for CONST and
+    // y_k = win.at(k) - k * slope for LINEAR. f is convex and minimal between
+    // the two medians of the y_k, so the minimum is at the references closest
+    // to the medians. The window keeps its values sorted by y_k as they are
+    // pushed, see SortedWindow, so the medians are at hand and a delta takes
+    // O(omega) per tick: a scan for the references and at most two sums.
+    //
+    // The sums are computed as in the old O(omega^2) loops, which took the
+    // smallest sum over every reference. Other references tied with the
+    // medians give the same f but sums that differ by rounding, so a delta
+    // may differ from the old one by the rounding error of a sum, about
+    // omega^2 * 1e-16 times the magnitude of the terms at most. main() checks
+    // the deltas and the modes against the old loops on random windows.
+
+    private double calcConstrainedConstDelta(SlidingWindow win, ErrorSignature errorSig) {
+        int winSize = win.getSize();
+        SortedWindow sorted = win.getSortedWindow(0.0);
+        if (winSize == 0 || sorted.hasNaN())
+            return Double.MAX_VALUE;    // no reference, or every sum is NaN
+        double lowerMedian = win.at(sorted.positionAt((winSize - 1) / 2));
+        double upperMedian = win.at(sorted.positionAt(winSize / 2));
+
+        // the largest reference up to the upper median and the smallest one
+        // from the lower median, one of which is the closest to the medians
+        double lower = Double.NEGATIVE_INFINITY, upper = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < winSize; j++) {
+            double ref = errorSig.getClosestEndPoint(win.at(j));
+            if (ref <= upperMedian && lower < ref)
+                lower = ref;
+            if (lowerMedian <= ref && ref < upper)
+                upper = ref;
+        }
+
+        double closestFail = Double.MAX_VALUE;
+        for (double ref : new double[] { lower, upper }) {
+            if (Double.isInfinite(ref))
+                continue;   // no such reference
+            double thisFail = 0.0;
+            for (int k = 0; k < winSize; k++) 
+                thisFail += calcDiff(win.at(k), ref);
+            closestFail = (thisFail < closestFail) ? thisFail : closestFail;
+        }
+        return closestFail;
+    }
+
+    private double calcLinearDelta(SlidingWindow win, ErrorSignature errorSig, int interval) {
+        // with win.at(j) as a reference point, win.at(k) is anticipated to be
+        // win.at(j) + (k - j) * slope, i.e., the references are the y_k
+        int winSize = win.getSize();
+        SortedWindow sorted = win.getSortedWindow(((double)interval / 1000) * errorSig.getValue());
+        if (winSize == 0 || sorted.hasNaN())
+            return Double.MAX_VALUE;    // no reference, or every sum is NaN
+
+        double closestFail = Double.MAX_VALUE;
+        for (int m = (winSize - 1) / 2; m <= winSize / 2; m++) {
+            // use the median win.at(j) as a reference point
+            int j = sorted.positionAt(m);
+            double thisFail = 0.0;
+            double ref = win.at(j);
+            for (int k = 0; k < winSize; k++) {
+                double anticipated = ref + ((k - j) * ((double)interval / 1000) * errorSig.getValue());
+                thisFail += calcDiff(win.at(k), anticipated);
+            }
+            closestFail = (thisFail < closestFail) ? thisFail : closestFail;
+        }
+        return closestFail;
+    }
+
     private double calcDiff(double a, double b) {
         // we can try other delta calculation methods
         double diff = Math.abs(a - b);
@@ -124,4 +179,121 @@ public class ErrorAnalyzer {
         ErrorSignature errorSig = errorSigs.get(mode);
         return errorSig.getDesc();
     }
+
+    // The old O(omega^2) loops, for main()
+
+    private double calcOldConstrainedConstDelta(SlidingWindow win, ErrorSignature errorSig) {
+        double closestFail = Double.MAX_VALUE;
+        for (int j = 0; j < win.getSize(); j++) {
+            double thisFail = 0.0;
+            double ref = errorSig.getClosestEndPoint(win.at(j));
+            for (int k = 0; k < win.getSize(); k++) 
+                thisFail += calcDiff(win.at(k), ref);
+            closestFail = (thisFail < closestFail) ? thisFail : closestFail;
+        }
+        return closestFail;
+    }
+
+    private double calcOldLinearDelta(SlidingWindow win, ErrorSignature errorSig, int interval) {
+        double closestFail = Double.MAX_VALUE;
+        for (int j = 0; j < win.getSize(); j++) {
+            double thisFail = 0.0;
+            double ref = win.at(j);
+            for (int k = 0; k < win.getSize(); k++) {
+                double anticipated = ref + ((k - j) * ((double)interval / 1000) * errorSig.getValue());
+                thisFail += calcDiff(win.at(k), anticipated);
+            }
+            closestFail = (thisFail < closestFail) ? thisFail : closestFail;
+        }
+        return closestFail;
+    }
+
+    public static void main(String[] args) {
+        // test: compares the deltas and the modes with those of the old
+        // loops on random windows, e.g., noisy, integer and exactly linear
+        // values, for omega up to args[0] (500 by default)
+        int maxOmega = (0 < args.length) ? Integer.parseInt(args[0]) : 500;
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put("tau", 0.6);
+        attrs.put("errordebug", false);
+        Namespace opts = new Namespace(attrs);
+        Random random = new Random(1);
+
+        int numDeltas = 0, numInexact = 0, numBeyondBound = 0;
+        int numModes = 0, numModeDiffs = 0, numTiedModeDiffs = 0;
+        double maxError = 0.0;      // relative to the bound
+        for (int trial = 0; trial < 200; trial++) {
+            double low = random.nextInt(40) - 20, high = low + random.nextInt(20);
+            List<Constraint> constraints = new ArrayList<Constraint>();
+            constraints.add(new Constraint(Constraint.GREATER_THAN_OR_EQUAL_TO, low));
+            constraints.add(new Constraint(Constraint.LESS_THAN, high));
+            double slope = random.nextInt(5) - 2 + (random.nextBoolean() ? 0 : random.nextDouble());
+            List<ErrorSignature> errorSigs = Arrays.asList(
+                new ErrorSignature(ErrorSignature.CONST, 0.0, "constrained", constraints),
+                new ErrorSignature(ErrorSignature.LINEAR, slope, "linear"),
+                new ErrorSignature(ErrorSignature.LINEAR, 0.0, "flat"));
+            ErrorAnalyzer analyzer = new ErrorAnalyzer(errorSigs, opts);
+
+            int omega = 1 + random.nextInt((trial % 8 == 0) ? maxOmega : 20);
+            int interval = random.nextBoolean() ? 1000 : 200;
+            int style = random.nextInt(4);
+            SlidingWindow win = new SlidingWindow(omega);
+            for (int p = 0; p < 3 * omega + 10; p++) {
+                double value;
+                if (style == 0)
+                    value = random.nextInt(10) - 5;
+                else if (style == 1)
+                    value = random.nextGaussian() * 30;
+                else if (style == 2)
+                    value = p * ((double)interval / 1000) * slope + ((random.nextInt(4) == 0) ? 3 : 0);
+                else
+                    value = Math.round((200 + random.nextGaussian()) * 1000) / 1000.0;
+                win.push(value);
+
+                double magnitude = 0.0;
+                for (int k = 0; k < win.getSize(); k++)
+                    magnitude = Math.max(magnitude, Math.abs(win.at(k)));
+                magnitude += win.getSize() * Math.abs(slope) + Math.abs(high) + Math.abs(low);
+                double bound = win.getSize() * win.getSize() * Math.ulp(1.0) * magnitude;
+
+                double[] deltas = new double[errorSigs.size()];
+                double[] oldDeltas = new double[errorSigs.size()];
+                for (int i = 0; i < errorSigs.size(); i++) {
+                    ErrorSignature errorSig = errorSigs.get(i);
+                    if (errorSig.getType() == ErrorSignature.CONST) {
+                        deltas[i] = analyzer.calcConstrainedConstDelta(win, errorSig);
+                        oldDeltas[i] = analyzer.calcOldConstrainedConstDelta(win, errorSig);
+                    }
+                    else {
+                        deltas[i] = analyzer.calcLinearDelta(win, errorSig, interval);
+                        oldDeltas[i] = analyzer.calcOldLinearDelta(win, errorSig, interval);
+                    }
+                    double error = Math.abs(deltas[i] - oldDeltas[i]);
+                    numDeltas++;
+                    numInexact += (error != 0) ? 1 : 0;
+                    numBeyondBound += (bound < error) ? 1 : 0;
+                    maxError = Math.max(maxError, error / bound);
+                }
+
+                // modes may differ only where deltas tie within the bound
+                numModes++;
+                if (analyzer.calcMode(deltas) != analyzer.calcMode(oldDeltas)) {
+                    boolean tied = false;
+                    for (int i = 0; i < deltas.length; i++) {
+                        for (int l = 0; l < i; l++)
+                            tied |= Math.abs(oldDeltas[i] - oldDeltas[l]) <= 2 * bound;
+                    }
+                    numModeDiffs++;
+                    numTiedModeDiffs += tied ? 1 : 0;
+                }
+            }
+        }
+
+        System.out.println("deltas=" + numDeltas + ", inexact=" + numInexact
+                           + ", beyond bound=" + numBeyondBound
+                           + ", max error/bound=" + maxError);
+        System.out.println("modes=" + numModes + ", different=" + numModeDiffs
+                           + ", of which tied=" + numTiedModeDiffs);
+        System.out.println((numBeyondBound == 0 && numModeDiffs == numTiedModeDiffs) ? "OK" : "FAILED");
+    }
 }
@@ -1,6 +1,8 @@
 package pilots.runtime.errsig;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class SlidingWindow {
     private static final int MAX_WINDOW_SIZE = 1024; // should be much larger than omega
@@ -9,16 +11,29 @@ public class SlidingWindow {
     private int omega;         // window size
     private int size;          // current # of elements
     private int startPos;
+    private long numPushed;    // # of values pushed so far
+    private List<SortedWindow> sortedWindows;
     
     public SlidingWindow (int omega) {
         this.omega = omega;
-        this.window = new double[MAX_WINDOW_SIZE];
+        this.window = new double[Math.max(MAX_WINDOW_SIZE, 4 * omega)];
         Arrays.fill(this.window, 0);
         this.size = 0;
         this.startPos = 0;
+        this.numPushed = 0;
+        this.sortedWindows = new ArrayList<SortedWindow>();
     }
 
     public void push (double data) {
+        // the sorted windows evict the oldest data first
+        if (size == omega) {
+            for (SortedWindow sorted : sortedWindows)
+                sorted.remove(at(0), numPushed - size);
+        }
+        for (SortedWindow sorted : sortedWindows)
+            sorted.add(data, numPushed);
+        numPushed++;
+
         // adds data to the tail of window
         if (size < omega) {
             window[size] = data;
@@ -29,7 +44,7 @@ public class SlidingWindow {
 
             // System.out.println("push, start_pos=" + startPos + ", writePos=" + writePos);
 
-            if (writePos < MAX_WINDOW_SIZE) {
+            if (writePos < window.length) {
                 // just shift the window, one data to the right
                 window[writePos] = data;
                 startPos++;
@@ -71,6 +86,21 @@ public class SlidingWindow {
         return omega;
     }
 
+    // getSortedWindow returns the values sorted by value_i - i * slope, which
+    // push keeps up to date from the first call on
+    public SortedWindow getSortedWindow(double slope) {
+        for (SortedWindow sorted : sortedWindows) {
+            if (Double.compare(sorted.getSlope(), slope) == 0)
+                return sorted;
+        }
+
+        SortedWindow sorted = new SortedWindow(slope, omega);
+        for (int i = 0; i < size; i++)
+            sorted.add(at(i), numPushed - size + i);
+        sortedWindows.add(sorted);
+        return sorted;
+    }
+
     public static void main(String args[]) {
         // test
         SlidingWindow win = new SlidingWindow(5);  // tested with MAX_WINDOW_SIZE=10
@@ -0,0 +1,132 @@
+package pilots.runtime.errsig;
+
+import java.util.Arrays;
+
+// SortedWindow keeps the values of a SlidingWindow sorted by
+// y_i = value_i - i * slope, where i numbers the values from the first one
+// ever pushed, so that the order statistics of the window, e.g., its medians,
+// are at hand on every tick. Pushing a value shifts the y of every other
+// value by the same amount, so the order does not change; SlidingWindow.push
+// only inserts the new value and removes the evicted one by binary search.
+// Ties are ordered by i.
+public class SortedWindow {
+    private double slope;
+    private double[] keys;     // y_i - y of base, in ascending order
+    private long[] indices;    // i of each key
+    private double[] values;   // value_i of each key
+    private int size;          // current # of values
+    private long base;         // i of the value the keys are relative to
+    private long nextIndex;    // i of the next value
+
+    public SortedWindow(double slope, int omega) {
+        this.slope = slope;
+        this.keys = new double[omega];
+        this.indices = new long[omega];
+        this.values = new double[omega];
+        this.size = 0;
+        this.base = 0;
+        this.nextIndex = 0;
+    }
+
+    public double getSlope() {
+        return slope;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    // add appends the value with index i, which must be the next one
+    public void add(double value, long i) {
+        if (size == keys.length)
+            throw new IllegalStateException("SortedWindow full: " + size);
+        nextIndex = i + 1;
+
+        // the keys are kept small relative to the magnitude of the values by
+        // rebasing them on the oldest value once in omega pushes
+        if (slope != 0 && 2 * keys.length <= i - base && 0 < size) {
+            base = i - size;
+            rebase();
+        }
+
+        double key = calcKey(value, i);
+        int k = search(key, i);
+        System.arraycopy(keys, k, keys, k + 1, size - k);
+        System.arraycopy(indices, k, indices, k + 1, size - k);
+        System.arraycopy(values, k, values, k + 1, size - k);
+        keys[k] = key;
+        indices[k] = i;
+        values[k] = value;
+        size++;
+    }
+
+    // remove evicts the value with index i, which must be the oldest one
+    public void remove(double value, long i) {
+        int k = search(calcKey(value, i), i);
+        if (size <= k || indices[k] != i)
+            throw new IllegalStateException("Not in SortedWindow: " + i);
+        System.arraycopy(keys, k + 1, keys, k, size - k - 1);
+        System.arraycopy(indices, k + 1, indices, k, size - k - 1);
+        System.arraycopy(values, k + 1, values, k, size - k - 1);
+        size--;
+    }
+
+    // positionAt returns the position in the SlidingWindow, i.e., the index
+    // for SlidingWindow.at(), of the k-th smallest y
+    public int positionAt(int k) {
+        return (int)(indices[k] - (nextIndex - size));
+    }
+
+    public boolean hasNaN() {
+        // Double.compare puts NaN last
+        return 0 < size && Double.isNaN(keys[size - 1]);
+    }
+
+    private double calcKey(double value, long i) {
+        return value - (i - base) * slope;
+    }
+
+    // search returns the first k where (keys[k], indices[k]) is not smaller
+    // than (key, i)
+    private int search(double key, long i) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Double.compare(keys[mid], key);
+            if (cmp < 0 || (cmp == 0 && indices[mid] < i))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private void rebase() {
+        for (int k = 0; k < size; k++)
+            keys[k] = calcKey(values[k], indices[k]);
+
+        // the new keys may be out of order only by rounding, so insertion
+        // sort takes O(size) unless many keys tie, and O(size^2) at worst,
+        // i.e., O(size) per push
+        for (int k = 1; k < size; k++) {
+            double key = keys[k];
+            long i = indices[k];
+            double value = values[k];
+            int l = k;
+            while (0 < l && (Double.compare(key, keys[l - 1]) < 0
+                             || (Double.compare(key, keys[l - 1]) == 0 && i < indices[l - 1]))) {
+                keys[l] = keys[l - 1];
+                indices[l] = indices[l - 1];
+                values[l] = values[l - 1];
+                l--;
+            }
+            keys[l] = key;
+            indices[l] = i;
+            values[l] = value;
+        }
+    }
+
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(values, size));
+    }
+}